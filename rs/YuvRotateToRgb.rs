@@ -0,0 +1,95 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+#pragma version(1)
+#pragma rs java_package_name(com.android.camera.imageprocessor)
+#pragma rs_fp_relaxed
+
+// NV21 frame with the row stride of the preview ImageReader
+rs_allocation gIn;
+// RGBA frame, srcHeight wide and srcWidth high
+rs_allocation gOut;
+uint32_t srcWidth;
+uint32_t srcHeight;
+uint32_t stride;
+uint32_t degree;
+
+// BT.601 coefficients in 10 bit fixed point
+#define COEF_RV 1404
+#define COEF_GV 715
+#define COEF_GU 346
+#define COEF_BU 1774
+#define COEF_ROUND 512
+
+static inline uchar4 toRgb(int yV, int rOff, int gOff, int bOff) {
+    uchar4 res4;
+    res4.r = (uchar)clamp(yV + rOff, 0, 255);
+    res4.g = (uchar)clamp(yV + gOff, 0, 255);
+    res4.b = (uchar)clamp(yV + bOff, 0, 255);
+    res4.a = 0xFF;
+    return res4;
+}
+
+// Each invocation converts one 2x2 luma block, which shares a single VU
+// pair, and writes it rotated into gOut. Launched over a
+// srcWidth/2 x srcHeight/2 allocation whose content is not used.
+void __attribute__((kernel)) nv21RotateToRgb(uchar in, uint32_t x, uint32_t y) {
+    uint32_t sx = x << 1;
+    uint32_t sy = y << 1;
+    uint32_t yIndex = sx + sy * stride;
+    uint32_t vuIndex = stride * srcHeight + y * stride + sx;
+
+    int vV = (int)rsGetElementAt_uchar(gIn, vuIndex) - 128;
+    int uV = (int)rsGetElementAt_uchar(gIn, vuIndex + 1) - 128;
+    int rOff = (COEF_RV * vV + COEF_ROUND) >> 10;
+    int gOff = (-COEF_GV * vV - COEF_GU * uV + COEF_ROUND) >> 10;
+    int bOff = (COEF_BU * uV + COEF_ROUND) >> 10;
+
+    uchar4 p00 = toRgb(rsGetElementAt_uchar(gIn, yIndex), rOff, gOff, bOff);
+    uchar4 p10 = toRgb(rsGetElementAt_uchar(gIn, yIndex + 1), rOff, gOff, bOff);
+    uchar4 p01 = toRgb(rsGetElementAt_uchar(gIn, yIndex + stride), rOff, gOff, bOff);
+    uchar4 p11 = toRgb(rsGetElementAt_uchar(gIn, yIndex + stride + 1), rOff, gOff, bOff);
+
+    // Output position of source pixel (sx, sy). One source column moves
+    // the output by dy rows and one source row moves it by dx columns.
+    int ox, oy, dx, dy;
+    if (degree == 90) {
+        ox = srcHeight - 1 - sy; oy = sx; dx = -1; dy = 1;
+    } else if (degree == 180) {
+        ox = srcHeight - 1 - sy; oy = srcWidth - 1 - sx; dx = -1; dy = -1;
+    } else if (degree == 270) {
+        ox = sy; oy = srcWidth - 1 - sx; dx = 1; dy = -1;
+    } else {
+        ox = sy; oy = sx; dx = 1; dy = 1;
+    }
+
+    rsSetElementAt_uchar4(gOut, p00, ox, oy);
+    rsSetElementAt_uchar4(gOut, p10, ox, oy + dy);
+    rsSetElementAt_uchar4(gOut, p01, ox + dx, oy);
+    rsSetElementAt_uchar4(gOut, p11, ox + dx, oy + dy);
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Collects the images saved during a burst such as longshot and reports
+ * them together on the main thread, instead of one notification per image.
+ * The report waits until every save queued by the time the burst ended has
+ * finished, so the saves still in the queue are part of the burst too.
+ */
+class BurstSaveNotifier {
+    public interface Listener {
+        void onBurstSaved(List<Uri> uris);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+    private final ArrayList<Uri> mUris = new ArrayList<Uri>();
+    private boolean mActive;
+    // Ended, but saves queued during the burst may still be pending.
+    private boolean mEnding;
+
+    private final Runnable mReport = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<Uri> uris;
+            synchronized (BurstSaveNotifier.this) {
+                // A new burst started meanwhile reports these with its own.
+                if (mActive || !mEnding) {
+                    return;
+                }
+                mEnding = false;
+                uris = new ArrayList<Uri>(mUris);
+                mUris.clear();
+            }
+            mListener.onBurstSaved(uris);
+        }
+    };
+
+    BurstSaveNotifier(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void begin() {
+        if (!mEnding) {
+            mUris.clear();
+        }
+        mActive = true;
+    }
+
+    /* Returns false if no burst is active and uri was not taken. */
+    public synchronized boolean onMediaSaved(Uri uri) {
+        if (!mActive && !mEnding) {
+            return false;
+        }
+        if (uri != null) {
+            mUris.add(uri);
+        }
+        return true;
+    }
+
+    /*
+     * Ends the burst, may be called from any thread and more than once.
+     * The images are reported once service has saved everything queued.
+     */
+    public void end(MediaSaveService service) {
+        synchronized (this) {
+            if (!mActive) {
+                return;
+            }
+            mActive = false;
+            mEnding = true;
+        }
+        if (service != null) {
+            service.runWhenSaved(mReport);
+        } else {
+            mHandler.post(mReport);
+        }
+    }
+}
@@ -123,6 +123,7 @@ import org.codeaurora.snapcam.R;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import static com.android.camera.CameraManager.CameraOpenErrorCallback;
 
@@ -219,7 +220,6 @@ public class CameraActivity extends Activity
     private Intent mResultDataForTesting;
     private OnScreenHint mStorageHint;
     private final Object mStorageSpaceLock = new Object();
-    private long mStorageSpaceBytes = Storage.LOW_STORAGE_THRESHOLD_BYTES;
     private boolean mSecureCamera;
     private boolean mInCameraApp = true;
     // Keep track of powershutter state
@@ -736,7 +736,8 @@ public class CameraActivity extends Activity
     public void updateThumbnail(final byte[] jpegData) {
         if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
         mUpdateThumbnailTask = new UpdateThumbnailTask(jpegData, true);
-        mUpdateThumbnailTask.execute();
+        // Don't queue behind other serial tasks, the shot should show up now.
+        mUpdateThumbnailTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     public void updateThumbnail(final Bitmap bitmap) {
@@ -837,20 +838,54 @@ public class CameraActivity extends Activity
             // Panorama module generates thumbnail bitmap with orientation adjustment but only
             // saves jpeg with orientation tag set.
             int orientation = 0;
-            if (mCheckOrientation) {
-                ExifInterface exif = new ExifInterface();
-                try {
-                    if (mJpegData != null) {
-                        exif.readExif(mJpegData);
-                    } else {
-                        exif.readExif(path);
-                    }
+            ExifInterface exif = new ExifInterface();
+            boolean hasExif = false;
+            try {
+                if (mJpegData != null) {
+                    exif.readExif(mJpegData);
+                } else {
+                    exif.readExif(path);
+                }
+                hasExif = true;
+                if (mCheckOrientation) {
                     orientation = Exif.getOrientation(exif);
-                } catch (IOException e) {
-                    // ignore
                 }
+            } catch (IOException e) {
+                // ignore
+            }
+
+            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
+            // The embedded thumbnail is enough for the button and avoids
+            // decoding the full image.
+            Bitmap bitmap = hasExif ? decodeExifThumbnail(exif, target) : null;
+            if (bitmap == null) {
+                bitmap = decodeRegion(path, target);
+            }
+            if (bitmap != null && orientation != 0) {
+                Matrix matrix = new Matrix();
+                matrix.setRotate(orientation);
+                bitmap = Bitmap.createBitmap(bitmap, 0, 0,
+                        bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+            }
+            return bitmap;
+        }
+
+        // Returns null if there is no thumbnail or it is too small for target.
+        private Bitmap decodeExifThumbnail(ExifInterface exif, int target) {
+            byte[] thumb = exif.getThumbnail();
+            if (thumb == null) {
+                return null;
+            }
+            final BitmapFactory.Options opt = new BitmapFactory.Options();
+            opt.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(thumb, 0, thumb.length, opt);
+            if (Math.min(opt.outWidth, opt.outHeight) < target / 2) {
+                return null;
             }
+            return BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
+        }
 
+        private Bitmap decodeRegion(final String path, int target) {
             final BitmapFactory.Options opt = new BitmapFactory.Options();
             opt.inJustDecodeBounds = true;
             if (mJpegData != null) {
@@ -863,7 +898,6 @@ public class CameraActivity extends Activity
             int h = opt.outHeight;
             int d = w > h ? h : w;
 
-            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
             int sample = 1;
             if (d > target) {
                 while (d / sample / 2 > target) {
@@ -885,14 +919,7 @@ public class CameraActivity extends Activity
             } catch (IOException e) {
                 return null;
             }
-            Bitmap bitmap = decoder.decodeRegion(rect, opt);
-            if (orientation != 0) {
-                Matrix matrix = new Matrix();
-                matrix.setRotate(orientation);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0,
-                        bitmap.getWidth(), bitmap.getHeight(), matrix, false);
-            }
-            return bitmap;
+            return decoder.decodeRegion(rect, opt);
         }
     }
 
@@ -1267,6 +1294,14 @@ public class CameraActivity extends Activity
         }
     }
 
+    // Adds photos saved together, e.g. by a longshot, with one filmstrip query.
+    public void notifyNewPhotos(List<Uri> uris) {
+        for (Uri uri : uris) {
+            CameraUtil.broadcastNewPicture(this, uri);
+        }
+        mDataAdapter.addNewPhotos(getContentResolver(), uris);
+    }
+
     private void removeData(int dataID) {
         mDataAdapter.removeData(CameraActivity.this, dataID);
         if (mDataAdapter.getTotalNumber() > 1) {
@@ -1889,24 +1924,23 @@ public class CameraActivity extends Activity
 
     protected long updateStorageSpace() {
         synchronized (mStorageSpaceLock) {
-            mStorageSpaceBytes = Storage.getAvailableSpace();
+            StorageSpaceTracker tracker = StorageSpaceTracker.instance();
+            long storageSpace = tracker.refresh();
             if (Storage.switchSavePath()) {
-                mStorageSpaceBytes = Storage.getAvailableSpace();
+                storageSpace = tracker.refresh();
                 mCurrentModule.onSwitchSavePath();
             }
-            return mStorageSpaceBytes;
+            return storageSpace;
         }
     }
 
+    // Cached estimate, no file system query.
     protected long getStorageSpaceBytes() {
-        synchronized (mStorageSpaceLock) {
-            return mStorageSpaceBytes;
-        }
+        return StorageSpaceTracker.instance().getAvailableSpace();
     }
 
     protected void updateStorageSpaceAndHint() {
-        updateStorageSpace();
-        updateStorageHint(mStorageSpaceBytes);
+        updateStorageHint(updateStorageSpace());
     }
 
     protected interface OnStorageUpdateDoneListener {
@@ -19,7 +19,6 @@
 
 package com.android.camera;
 
-import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -57,7 +56,6 @@ import android.media.MediaActionSound;
 import android.media.MediaMetadataRetriever;
 import android.media.MediaRecorder;
 import android.net.Uri;
-import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -76,7 +74,6 @@ import android.widget.Toast;
 
 import com.android.camera.PhotoModule.NamedImages;
 import com.android.camera.PhotoModule.NamedImages.NamedEntity;
-import com.android.camera.exif.ExifInterface;
 import com.android.camera.imageprocessor.FrameProcessor;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.imageprocessor.filter.ImageFilter;
@@ -88,7 +85,6 @@ import com.android.camera.ui.TrackingFocusRenderer;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
-import com.android.internal.util.MemInfoReader;
 
 import org.codeaurora.snapcam.R;
 import org.codeaurora.snapcam.filter.ClearSightImageProcessor;
@@ -105,7 +101,8 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class CaptureModule extends BaseModule<CaptureUI> implements PhotoController,
-        MediaSaveService.Listener, ClearSightImageProcessor.Callback,
+        MediaSaveService.Listener, MediaSaveService.OccupancyListener,
+        ClearSightImageProcessor.Callback,
         SettingsManager.Listener, LocationManager.Listener,
         CountDownView.OnCountDownFinishedListener,
         PauseButton.OnPauseButtonListener {
@@ -207,8 +204,12 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
     private FocusStateListener mFocusStateListener;
     private LocationManager mLocationManager;
     public SettingsManager mSettingsManager;
-    private long SECONDARY_SERVER_MEM;
     private boolean mLongshotActive = false;
+    // The shutter is held once the save queue is this full, before images
+    // would have to be dropped.
+    private static final float SAVE_QUEUE_THROTTLE_OCCUPANCY = 0.9f;
+    private volatile boolean mSaveQueueFull = false;
+    private volatile boolean mSaveQueueThrottled = false;
     private CameraCharacteristics mMainCameraCharacteristics;
     private int mDisplayRotation;
     private int mDisplayOrientation;
@@ -300,42 +301,21 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
     }
     private SelfieThread selfieThread;
 
-    private class MediaSaveNotifyThread extends Thread {
-        private Uri uri;
-
-        public MediaSaveNotifyThread(Uri uri) {
-            this.uri = uri;
-        }
-
-        public void setUri(Uri uri) {
-            this.uri = uri;
-        }
-
-        public void run() {
-            while (mLongshotActive) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                }
-            }
-            mActivity.runOnUiThread(new Runnable() {
-                public void run() {
-                    if (uri != null)
-                        mActivity.notifyNewMedia(uri);
+    // Collects the longshot images and reports them once the burst ends.
+    private final BurstSaveNotifier mBurstSaveNotifier = new BurstSaveNotifier(
+            new BurstSaveNotifier.Listener() {
+                @Override
+                public void onBurstSaved(List<Uri> uris) {
+                    mActivity.notifyNewPhotos(uris);
                     mActivity.updateStorageSpaceAndHint();
                     if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
                 }
             });
-            mediaSaveNotifyThread = null;
-        }
-    }
 
     public void updateThumbnailJpegData(byte[] jpegData) {
         mLastJpegData = jpegData;
     }
 
-    private MediaSaveNotifyThread mediaSaveNotifyThread;
-
     private final MediaSaveService.OnMediaSavedListener mOnVideoSavedListener =
             new MediaSaveService.OnMediaSavedListener() {
                 @Override
@@ -350,20 +330,22 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
             new MediaSaveService.OnMediaSavedListener() {
                 @Override
                 public void onMediaSaved(Uri uri) {
-                    if (mLongshotActive) {
-                        if (mediaSaveNotifyThread == null) {
-                            mediaSaveNotifyThread = new MediaSaveNotifyThread(uri);
-                            mediaSaveNotifyThread.start();
-                        } else
-                            mediaSaveNotifyThread.setUri(uri);
-                    } else {
-                        if (uri != null) {
-                            mActivity.notifyNewMedia(uri);
-                        }
+                    if (!mBurstSaveNotifier.onMediaSaved(uri) && uri != null) {
+                        mActivity.notifyNewMedia(uri);
                     }
                 }
             };
 
+    private void setLongshotActive(boolean active) {
+        mLongshotActive = active;
+        if (active) {
+            MemoryMonitor.instance().startSampling();
+            mBurstSaveNotifier.begin();
+        } else {
+            mBurstSaveNotifier.end(mActivity.getMediaSaveService());
+        }
+    }
+
     public MediaSaveService.OnMediaSavedListener getMediaSavedListener() {
         return mOnMediaSavedListener;
     }
@@ -1245,7 +1227,7 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
                                 public void onCaptureSequenceCompleted(CameraCaptureSession session, int
                                         sequenceId, long frameNumber) {
                                     Log.d(TAG, "captureStillPicture Longshot onCaptureSequenceCompleted: " + id);
-                                    mLongshotActive = false;
+                                    setLongshotActive(false);
                                     unlockFocus(id);
                                 }
                             }, mCaptureCallbackHandler);
@@ -1416,8 +1398,7 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
 
                                     byte[] bytes = getJpegData(image);
 
-                                    ExifInterface exif = Exif.getExif(bytes);
-                                    int orientation = Exif.getOrientation(exif);
+                                    int orientation = Exif.getOrientation(bytes);
 
                                     mActivity.getMediaSaveService().addImage(bytes, title, date,
                                             null, image.getWidth(), image.getHeight(), orientation, null,
@@ -1464,8 +1445,7 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
                         byte[] bytes = new byte[buffer.remaining()];
                         buffer.get(bytes);
 
-                        ExifInterface exif = Exif.getExif(bytes);
-                        int orientation = Exif.getOrientation(exif);
+                        int orientation = Exif.getOrientation(bytes);
 
                         mActivity.getMediaSaveService().addImage(bytes, title, date,
                                 null, image.getWidth(), image.getHeight(), orientation, null,
@@ -1784,7 +1764,7 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
         for (int i = 0; i < MAX_NUM_CAM; i++) {
             mState[i] = STATE_PREVIEW;
         }
-        mLongshotActive = false;
+        setLongshotActive(false);
         mZoomValue = 1.0f;
     }
 
@@ -2784,9 +2764,8 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
                 mUI.cancelCountDown();
             }
             //check whether current memory is enough for longshot.
-            mActivity.updateStorageSpaceAndHint();
-
             long storageSpace = mActivity.getStorageSpaceBytes();
+            mActivity.updateStorageHint(storageSpace);
             int mLongShotCaptureCountLimit = PersistUtil.getLongshotShotLimit();
 
             if (storageSpace <= Storage.LOW_STORAGE_THRESHOLD_BYTES + mLongShotCaptureCountLimit
@@ -2796,12 +2775,12 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
             }
 
             if (isLongshotNeedCancel()) {
-                mLongshotActive = false;
+                setLongshotActive(false);
                 return;
             }
 
             Log.d(TAG, "Start Longshot");
-            mLongshotActive = true;
+            setLongshotActive(true);
             takePicture();
         }
     }
@@ -2837,31 +2816,21 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
             return false;
         }
 
+        // A cached value, see StorageSpaceTracker.
         if (Storage.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
             Log.w(TAG, "current storage is full");
             return true;
         }
-        if (SECONDARY_SERVER_MEM == 0) {
-            ActivityManager am = (ActivityManager) mActivity.getSystemService(
-                    Context.ACTIVITY_SERVICE);
-            ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-            am.getMemoryInfo(memInfo);
-            SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
-        }
 
-        long totalMemory = Runtime.getRuntime().totalMemory();
-        long maxMemory = Runtime.getRuntime().maxMemory();
-        long remainMemory = maxMemory - totalMemory;
+        // Sampled in the background, see MemoryMonitor.
+        MemoryMonitor.Snapshot snapshot = MemoryMonitor.instance().getSnapshot();
+        // Null before the first sample, only the save queue can be checked then.
 
-        MemInfoReader reader = new MemInfoReader();
-        reader.readMemInfo();
-        long[] info = reader.getRawInfo();
-        long availMem = (info[Debug.MEMINFO_FREE] + info[Debug.MEMINFO_CACHED]) * 1024;
-
-        if (availMem <= SECONDARY_SERVER_MEM || remainMemory <= LONGSHOT_CANCEL_THRESHOLD) {
-            Log.e(TAG, "cancel longshot: free=" + info[Debug.MEMINFO_FREE] * 1024
-                    + " cached=" + info[Debug.MEMINFO_CACHED] * 1024
-                    + " threshold=" + SECONDARY_SERVER_MEM);
+        MediaSaveService service = mActivity.getMediaSaveService();
+        if ((snapshot != null && (snapshot.isSystemMemoryLow()
+                || snapshot.remainHeap <= LONGSHOT_CANCEL_THRESHOLD))
+                || (service != null && service.isQueueFull())) {
+            Log.e(TAG, "cancel longshot: " + snapshot);
             RotateTextToast.makeText(mActivity, R.string.msg_cancel_longshot_for_limited_memory,
                     Toast.LENGTH_SHORT).show();
             return true;
@@ -3111,10 +3080,24 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
 
     @Override
     public void onQueueStatus(final boolean full) {
+        mSaveQueueFull = full;
+        updateShutterForSaveQueue();
+    }
+
+    @Override
+    public void onQueueOccupancy(float occupancy) {
+        boolean throttled = occupancy >= SAVE_QUEUE_THROTTLE_OCCUPANCY;
+        if (throttled != mSaveQueueThrottled) {
+            mSaveQueueThrottled = throttled;
+            updateShutterForSaveQueue();
+        }
+    }
+
+    private void updateShutterForSaveQueue() {
         mActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mUI.enableShutter(!full);
+                mUI.enableShutter(!mSaveQueueFull && !mSaveQueueThrottled);
             }
         });
     }
@@ -3490,8 +3473,7 @@ public class CaptureModule extends BaseModule<CaptureUI> implements PhotoControl
             byte[] bayerBytes = getJpegData(bayerImage);
             byte[] monoBytes = getJpegData(monoImage);
 
-            ExifInterface exif = Exif.getExif(bayerBytes);
-            int orientation = Exif.getOrientation(exif);
+            int orientation = Exif.getOrientation(bayerBytes);
 
             mActivity.getMediaSaveService().addMpoImage(
                     null, bayerBytes, monoBytes, width, height, title,
@@ -52,8 +52,6 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import com.android.camera.imageprocessor.ScriptC_YuvToRgb;
-import com.android.camera.imageprocessor.ScriptC_rotator;
 import com.android.camera.imageprocessor.filter.BeautificationFilter;
 import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
 import com.android.camera.ui.AutoFitSurfaceView;
@@ -19,6 +19,7 @@ package com.android.camera;
 import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
 
 import java.io.IOException;
 
@@ -48,7 +49,18 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        // Only the orientation tag is needed, skip parsing the rest.
+        ExifTag tag = null;
+        try {
+            tag = new ExifInterface().readTags(jpegData, ExifInterface.TAG_ORIENTATION)[0];
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read EXIF orientation", e);
+        }
+        // Null for a malformed tag that does not hold integers.
+        int[] values = (tag == null) ? null : tag.getValueAsInts();
+        if (values == null || values.length < 1) {
+            return 0;
+        }
+        return ExifInterface.getRotationForOrientationValue((short) values[0]);
     }
 }
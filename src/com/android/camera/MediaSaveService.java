@@ -17,7 +17,17 @@
 package com.android.camera;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -26,9 +36,12 @@ import android.content.Intent;
 import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 
@@ -39,6 +52,9 @@ import com.android.camera.mpo.MpoInterface;
 
 /*
  * Service for saving images in the background thread.
+ * Saves go through three stages, each on its own executor: encode (image
+ * size and EXIF), file write and MediaStore insert. This keeps them off the
+ * global AsyncTask executor used by the filmstrip.
  */
 public class MediaSaveService extends Service {
     public static final String VIDEO_BASE_URI = "content://media/external/video/media";
@@ -47,27 +63,143 @@ public class MediaSaveService extends Service {
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
                                    android.os.SystemProperties.getInt("persist.camera.perf.memlimit", 60);
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
+    // How long a producer off the main thread waits for room in the queue
+    // before its image is dropped.
+    private static final long SAVE_QUEUE_WAIT_MS =
+            android.os.SystemProperties.getInt("persist.camera.perf.savewait", 3000);
+    // Size of the optional spool file for pending JPEGs, 0 keeps them on the heap.
+    private static final int SAVE_SPOOL_SIZE_IN_MB =
+            android.os.SystemProperties.getInt("persist.camera.perf.spool", 0);
+    // Occupancy events are sent when the occupancy moves to another tenth.
+    private static final int OCCUPANCY_STEPS = 10;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int STAGE_ENCODE = 0;
+    private static final int STAGE_WRITE = 1;
+    private static final int STAGE_INSERT = 2;
+    private static final int STAGE_COUNT = 3;
+    private static final String[] STAGE_NAMES = {"encode", "write", "insert"};
+    private static final int[] STAGE_THREADS = {2, 1, 1};
+    private static final long STAGE_KEEP_ALIVE_SECONDS = 10;
+    // While a burst is queued for insert, MediaStore inserts arriving within
+    // this window go out as one batch.
+    private static final long INSERT_BATCH_WINDOW_MS = 100;
+    private static final int INSERT_BATCH_MAX = 16;
 
     private final IBinder mBinder = new LocalBinder();
-    private Listener mListener;
+    private volatile Listener mListener;
     // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
-
+    private final AtomicLong mMemoryUse = new AtomicLong();
+    private final AtomicInteger mOccupancyStep = new AtomicInteger();
+    private final Object mCapacityLock = new Object();
+    private SaveSpool mSpool;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor[] mStageExecutors = new ThreadPoolExecutor[STAGE_COUNT];
+    private final StageStats[] mStageStats = new StageStats[STAGE_COUNT];
+    private final StageStats mTotalStats = new StageStats("total");
+    private final AtomicLong mSequence = new AtomicLong();
+    // Saves submitted and not finished yet.
+    private final AtomicInteger mPendingSaves = new AtomicInteger();
+    // Run on the main thread once mPendingSaves drops to zero.
+    private final ArrayList<Runnable> mDrainCallbacks = new ArrayList<Runnable>();
+    // Sequence number of the newest image, which is the one the thumbnail
+    // and the filmstrip head show.
+    private volatile long mLatestImageSeq = -1;
+
+    /* Called on the main thread. */
     public interface Listener {
         public void onQueueStatus(boolean full);
     }
 
+    /*
+     * A Listener implementing this also gets the queue occupancy, the used
+     * part of the memory limit, whenever it moves to another tenth. It is
+     * called on the main thread.
+     */
+    public interface OccupancyListener {
+        public void onQueueOccupancy(float occupancy);
+    }
+
     public interface OnMediaSavedListener {
         public void onMediaSaved(Uri uri);
     }
 
+    /*
+     * Handle of a queued save. await() must not be called on the main
+     * thread while the save's listener needs it.
+     */
+    public static class SaveTicket {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Uri mUri;
+        private volatile boolean mIsRejected;
+
+        static SaveTicket rejected() {
+            SaveTicket ticket = new SaveTicket();
+            ticket.mIsRejected = true;
+            ticket.mDone.countDown();
+            return ticket;
+        }
+
+        void complete(Uri uri) {
+            mUri = uri;
+            mDone.countDown();
+        }
+
+        /* True when the save was dropped because the queue stayed full. */
+        public boolean isRejected() {
+            return mIsRejected;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /* The saved uri, null while pending or when saving failed. */
+        public Uri getUri() {
+            return mUri;
+        }
+
+        /* Waits for the save and returns its uri, null on timeout or failure. */
+        public Uri await(long timeoutMs) throws InterruptedException {
+            mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+            return mUri;
+        }
+    }
+
     class LocalBinder extends Binder {
         public MediaSaveService getService() {
             return MediaSaveService.this;
         }
     }
 
+    public MediaSaveService() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            final String name = "MediaSave-" + STAGE_NAMES[i];
+            // Threads go away when idle, so the executors need no shutdown
+            // and a save queued while the service is destroyed still completes.
+            mStageExecutors[i] = new ThreadPoolExecutor(STAGE_THREADS[i], STAGE_THREADS[i],
+                    STAGE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, name + mCount.getAndIncrement());
+                        }
+                    });
+            mStageExecutors[i].allowCoreThreadTimeOut(true);
+            mStageStats[i] = new StageStats(STAGE_NAMES[i]);
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -80,80 +212,213 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        if (mSpool != null) {
+            mSpool.closeWhenDrained();
+            mSpool = null;
+        }
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mMemoryUse.set(0);
+        if (SAVE_SPOOL_SIZE_IN_MB > 0) {
+            mSpool = SaveSpool.create(getCacheDir(), SAVE_SPOOL_SIZE_IN_MB * 1024 * 1024);
+        }
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        SaveSpool spool = mSpool;
+        return (mMemoryUse.get() >= SAVE_TASK_MEMORY_LIMIT)
+                && (spool == null || !spool.hasRoom());
+    }
+
+    /* Returns the part of the memory limit and spool used by the queued images. */
+    public float getQueueOccupancy() {
+        SaveSpool spool = mSpool;
+        if (spool == null) {
+            return (float) mMemoryUse.get() / SAVE_TASK_MEMORY_LIMIT;
+        }
+        return (float) (mMemoryUse.get() + spool.getUsedBytes())
+                / (SAVE_TASK_MEMORY_LIMIT + spool.getCapacity());
     }
 
-    public void addMpoImage(final byte[] csImage,
+    /*
+     * Blocks until the queue has room for another image or the timeout
+     * expires. Returns whether there is room. Must not be called on the main
+     * thread.
+     */
+    public boolean awaitCapacity(long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        synchronized (mCapacityLock) {
+            while (isQueueFull()) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mCapacityLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Accounts size bytes if the queue is not full. Off the main thread the
+     * caller waits up to SAVE_QUEUE_WAIT_MS for room.
+     */
+    private boolean reserveMemory(long size) {
+        boolean canWait = Looper.myLooper() != Looper.getMainLooper();
+        long deadline = SystemClock.uptimeMillis() + SAVE_QUEUE_WAIT_MS;
+        while (true) {
+            long used = mMemoryUse.get();
+            if (used < SAVE_TASK_MEMORY_LIMIT) {
+                if (mMemoryUse.compareAndSet(used, used + size)) {
+                    if (used + size >= SAVE_TASK_MEMORY_LIMIT) {
+                        onQueueFull();
+                    }
+                    onMemoryUseChanged();
+                    return true;
+                }
+                continue;
+            }
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (!canWait || remaining <= 0) {
+                return false;
+            }
+            try {
+                awaitCapacity(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void releaseMemory(long size) {
+        long used = mMemoryUse.addAndGet(-size);
+        if (used < SAVE_TASK_MEMORY_LIMIT && used + size >= SAVE_TASK_MEMORY_LIMIT) {
+            onQueueAvailable();
+        }
+        synchronized (mCapacityLock) {
+            mCapacityLock.notifyAll();
+        }
+        onMemoryUseChanged();
+    }
+
+    private void releaseSpool(SaveSpool spool, SaveSpool.Entry entry) {
+        boolean previouslyFull = isQueueFull();
+        spool.release(entry);
+        if (previouslyFull && !isQueueFull()) {
+            onQueueAvailable();
+        }
+        synchronized (mCapacityLock) {
+            mCapacityLock.notifyAll();
+        }
+        onMemoryUseChanged();
+    }
+
+    private void onMemoryUseChanged() {
+        Listener l = mListener;
+        if (!(l instanceof OccupancyListener)) {
+            return;
+        }
+        final float occupancy = getQueueOccupancy();
+        int step = (int) (Math.min(occupancy, 1f) * OCCUPANCY_STEPS);
+        if (mOccupancyStep.getAndSet(step) != step) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Listener l = mListener;
+                    if (l instanceof OccupancyListener) {
+                        ((OccupancyListener) l).onQueueOccupancy(occupancy);
+                    }
+                }
+            });
+        }
+    }
+
+    /* Number of save requests waiting for each stage. */
+    public int getStageQueueDepth(int stage) {
+        return mStageExecutors[stage].getQueue().size();
+    }
+
+    /* Queue depths and latencies of the save stages, for logging. */
+    public String getSaveStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sb.append(mStageStats[i]).append(" queued=").append(getStageQueueDepth(i))
+                    .append('\n');
+        }
+        sb.append(mTotalStats);
+        return sb.toString();
+    }
+
+    public SaveTicket addMpoImage(final byte[] csImage,
             final byte[] bayerImg, final byte[] monoImg,
             int width, int height,
             String title, long date, Location loc, int orientation,
             OnMediaSavedListener l, ContentResolver resolver,
             String pictureFormat) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
-
-        MpoSaveTask t = new MpoSaveTask(csImage, bayerImg, monoImg,
+        MpoSaveRequest r = new MpoSaveRequest(csImage, bayerImg, monoImg,
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
-
-        long size = (csImage == null ? 0
-                : csImage.length)
-                + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
+        if (!reserveMemory(r.memorySize)) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            return SaveTicket.rejected();
         }
-        t.execute();
+        return submit(r);
     }
 
-    public void addImage(final byte[] data, String title, long date, Location loc,
+    /*
+     * Off the main thread the caller waits up to SAVE_QUEUE_WAIT_MS for room,
+     * which is the backpressure for background producers such as the camera2
+     * longshot and post processing. Main thread callers, like the camera1
+     * longshot picture callbacks, never wait: they get a rejected ticket when
+     * the queue is full and rely on onQueueStatus() disabling the shutter.
+     */
+    public SaveTicket addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
-        if (isQueueFull()) {
+        // Spooled images only reserve their room here and are copied to the
+        // spool by the encode stage. The heap takes the overflow when the
+        // spool has no room.
+        SaveSpool spool = mSpool;
+        SaveSpool.Entry entry = null;
+        if (spool != null && isJpeg(pictureFormat)) {
+            entry = spool.reserve(data.length);
+        }
+        if (entry != null) {
+            onMemoryUseChanged();
+        } else if (!reserveMemory(data.length)) {
             Log.e(TAG, "Cannot add image when the queue is full");
-            return;
+            return SaveTicket.rejected();
         }
-        ImageSaveTask t = new ImageSaveTask(data, title, date,
+        ImageSaveRequest r = new ImageSaveRequest(data,
+                entry == null ? null : spool, entry, data.length, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
-
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        return submit(r);
     }
 
-    public void addImage(final byte[] data, String title, long date, Location loc,
+    public SaveTicket addImage(final byte[] data, String title, long date, Location loc,
                          int orientation, ExifInterface exif,
                          OnMediaSavedListener l, ContentResolver resolver) {
         // When dimensions are unknown, pass 0 as width and height,
         // and decode image for width and height later in a background thread
-        addImage(data, title, date, loc, 0, 0, orientation, exif, l, resolver,
+        return addImage(data, title, date, loc, 0, 0, orientation, exif, l, resolver,
                  PhotoModule.PIXEL_FORMAT_JPEG);
     }
-    public void addImage(final byte[] data, String title, Location loc,
+    public SaveTicket addImage(final byte[] data, String title, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver) {
-        addImage(data, title, System.currentTimeMillis(), loc, width, height,
+        return addImage(data, title, System.currentTimeMillis(), loc, width, height,
                 orientation, exif, l, resolver,PhotoModule.PIXEL_FORMAT_JPEG);
     }
 
-    public void addVideo(String path, long duration, ContentValues values,
+    public SaveTicket addVideo(String path, long duration, ContentValues values,
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        return submit(new VideoSaveRequest(path, duration, values, l, resolver));
     }
 
     public void setListener(Listener l) {
@@ -163,14 +428,277 @@ public class MediaSaveService extends Service {
     }
 
     private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+        postQueueStatus(true);
     }
 
     private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+        postQueueStatus(false);
+    }
+
+    // The stage threads change the queue status too, listeners touch views.
+    private void postQueueStatus(final boolean full) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener l = mListener;
+                if (l != null) l.onQueueStatus(full);
+            }
+        });
+    }
+
+    private static boolean isJpeg(String pictureFormat) {
+        return pictureFormat == null || pictureFormat.equalsIgnoreCase("jpeg");
+    }
+
+    private SaveTicket submit(SaveRequest request) {
+        if (request.isImage()) {
+            mLatestImageSeq = request.seq;
+        }
+        request.submitTimeNs = System.nanoTime();
+        mPendingSaves.incrementAndGet();
+        schedule(request, 0);
+        return request.ticket;
+    }
+
+    /* Queues the request for its next stage at or after the given one. */
+    private void schedule(SaveRequest request, int stage) {
+        while (stage < STAGE_COUNT && !request.hasStage(stage)) {
+            stage++;
+        }
+        if (stage == STAGE_COUNT) {
+            finish(request);
+            return;
+        }
+        boolean isThumbnail = request.seq == mLatestImageSeq;
+        mStageExecutors[stage].execute(new StageTask(request, stage, isThumbnail));
+    }
+
+    private void finish(final SaveRequest request) {
+        // Free the room right away, producers may be waiting for it.
+        if (request.memorySize > 0) {
+            releaseMemory(request.memorySize);
+        }
+        request.release();
+        mTotalStats.record(0, System.nanoTime() - request.submitTimeNs);
+        request.ticket.complete(request.uri);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request.listener != null) request.listener.onMediaSaved(request.uri);
+                if (DEBUG) Log.d(TAG, getSaveStats());
+            }
+        });
+        // After the listener is posted, so drain callbacks run behind it.
+        if (mPendingSaves.decrementAndGet() == 0) {
+            synchronized (mDrainCallbacks) {
+                if (mPendingSaves.get() == 0) {
+                    for (Runnable callback : mDrainCallbacks) {
+                        mMainHandler.post(callback);
+                    }
+                    mDrainCallbacks.clear();
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs callback on the main thread once every save queued so far has
+     * finished and its OnMediaSavedListener was called.
+     */
+    public void runWhenSaved(Runnable callback) {
+        synchronized (mDrainCallbacks) {
+            if (mPendingSaves.get() > 0) {
+                mDrainCallbacks.add(callback);
+                return;
+            }
+        }
+        mMainHandler.post(callback);
+    }
+
+    private class StageTask implements Runnable, Comparable<StageTask> {
+        private final SaveRequest mRequest;
+        private final int mStage;
+        private final boolean mIsThumbnail;
+        private final long mQueuedNs;
+
+        StageTask(SaveRequest request, int stage, boolean isThumbnail) {
+            mRequest = request;
+            mStage = stage;
+            mIsThumbnail = isThumbnail;
+            mQueuedNs = System.nanoTime();
+        }
+
+        // The thumbnail image goes first, everything else in arrival order.
+        @Override
+        public int compareTo(StageTask other) {
+            if (mIsThumbnail != other.mIsThumbnail) {
+                return mIsThumbnail ? -1 : 1;
+            }
+            return Long.compare(mRequest.seq, other.mRequest.seq);
+        }
+
+        @Override
+        public void run() {
+            if (mStage == STAGE_INSERT && mRequest.getInsertValues() != null) {
+                runInsertBatch(this);
+                return;
+            }
+            long start = System.nanoTime();
+            boolean done = false;
+            try {
+                mRequest.runStage(mStage);
+                done = true;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save " + mRequest + " at " + STAGE_NAMES[mStage], e);
+            } finally {
+                mStageStats[mStage].record(start - mQueuedNs, System.nanoTime() - start);
+            }
+            if (done) {
+                if (mStage == STAGE_WRITE) {
+                    Storage.onBytesWritten(mRequest.getWrittenBytes());
+                }
+                schedule(mRequest, mStage + 1);
+            } else {
+                finish(mRequest);
+            }
+        }
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    /*
+     * Runs on the insert thread. Collects the image inserts queued behind
+     * first and applies them as one MediaStore batch. It only waits a short
+     * while for more when inserts were already queued, so a single shot is
+     * inserted right away. Every collected request is finished even when the
+     * insert fails, so its memory and ticket are released.
+     */
+    private void runInsertBatch(StageTask first) {
+        ArrayList<StageTask> batch = new ArrayList<StageTask>();
+        ArrayList<ContentValues> values = new ArrayList<ContentValues>();
+        batch.add(first);
+        values.add(first.mRequest.getInsertValues());
+        int handedOff = 0;
+        try {
+            BlockingQueue<Runnable> queue = mStageExecutors[STAGE_INSERT].getQueue();
+            long deadline = SystemClock.uptimeMillis() + INSERT_BATCH_WINDOW_MS;
+            while (batch.size() < INSERT_BATCH_MAX && mPendingSaves.get() > batch.size()) {
+                StageTask next = (StageTask) queue.poll();
+                if (next == null) {
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (batch.size() == 1 || remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        next = (StageTask) queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                }
+                ContentValues v = next.mRequest.getInsertValues();
+                if (v == null) {
+                    next.run();
+                } else {
+                    batch.add(next);
+                    values.add(v);
+                }
+            }
+
+            long start = System.nanoTime();
+            Uri[] uris = Storage.addImages(first.mRequest.getResolver(), values);
+            long runNs = (System.nanoTime() - start) / batch.size();
+            if (DEBUG) Log.d(TAG, "Inserted " + batch.size() + " images in one batch");
+            while (handedOff < batch.size()) {
+                StageTask task = batch.get(handedOff);
+                task.mRequest.uri = uris[handedOff];
+                mStageStats[STAGE_INSERT].record(start - task.mQueuedNs, runNs);
+                schedule(task.mRequest, STAGE_INSERT + 1);
+                handedOff++;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to insert " + batch.size() + " images", e);
+        } finally {
+            for (int i = handedOff; i < batch.size(); i++) {
+                finish(batch.get(i).mRequest);
+            }
+        }
+    }
+
+    private static class StageStats {
+        private final String mName;
+        private long mCount;
+        private long mTotalWaitNs;
+        private long mTotalRunNs;
+        private long mMaxRunNs;
+
+        StageStats(String name) {
+            mName = name;
+        }
+
+        synchronized void record(long waitNs, long runNs) {
+            mCount++;
+            mTotalWaitNs += waitNs;
+            mTotalRunNs += runNs;
+            if (runNs > mMaxRunNs) {
+                mMaxRunNs = runNs;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (mCount == 0) {
+                return mName + ": idle";
+            }
+            return mName + ": count=" + mCount
+                    + " avgWait=" + (mTotalWaitNs / mCount / 1000000) + "ms"
+                    + " avgRun=" + (mTotalRunNs / mCount / 1000000) + "ms"
+                    + " maxRun=" + (mMaxRunNs / 1000000) + "ms";
+        }
+    }
+
+    private abstract class SaveRequest {
+        final long seq = mSequence.getAndIncrement();
+        final SaveTicket ticket = new SaveTicket();
+        final OnMediaSavedListener listener;
+        // Bytes counted against the memory limit until the save finishes.
+        final long memorySize;
+        long submitTimeNs;
+        Uri uri;
+
+        SaveRequest(OnMediaSavedListener listener, long memorySize) {
+            this.listener = listener;
+            this.memorySize = memorySize;
+        }
+
+        boolean isImage() {
+            return false;
+        }
+
+        /* MediaStore values for a batched insert, null to run the stage itself. */
+        ContentValues getInsertValues() {
+            return null;
+        }
+
+        ContentResolver getResolver() {
+            return null;
+        }
+
+        /* Bytes the write stage added to the save location. */
+        long getWrittenBytes() {
+            return 0;
+        }
+
+        /* Frees what the request holds besides memorySize, once it is done. */
+        void release() {
+        }
+
+        abstract boolean hasStage(int stage);
+
+        abstract void runStage(int stage) throws Exception;
+    }
+
+    private class MpoSaveRequest extends SaveRequest {
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
@@ -180,13 +708,16 @@ public class MediaSaveService extends Service {
         private int width, height;
         private int orientation;
         private ContentResolver resolver;
-        private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
 
-        public MpoSaveTask(byte[] csImage, byte[] bayerImg,
+        public MpoSaveRequest(byte[] csImage, byte[] bayerImg,
                 byte[] monoImg, int width, int height, String title, long date,
                 Location loc, int orientation, OnMediaSavedListener listener,
                 ContentResolver resolver, String pictureFormat) {
+            super(listener, (csImage == null ? 0 : csImage.length)
+                    + bayerImg.length + monoImg.length);
             this.csImage = csImage;
             this.bayerImage = bayerImg;
             this.monoImage = monoImg;
@@ -197,12 +728,39 @@ public class MediaSaveService extends Service {
             this.height = height;
             this.orientation = orientation;
             this.resolver = resolver;
-            this.listener = listener;
             this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        boolean isImage() {
+            return true;
+        }
+
+        @Override
+        ContentValues getInsertValues() {
+            return Storage.getContentValuesForData(title, date, loc, orientation,
+                    size, path, width, height, pictureFormat);
+        }
+
+        @Override
+        ContentResolver getResolver() {
+            return resolver;
+        }
+
+        @Override
+        boolean hasStage(int stage) {
+            return stage == STAGE_WRITE || stage == STAGE_INSERT;
+        }
+
+        @Override
+        void runStage(int stage) {
+            // The insert goes through runInsertBatch().
+            if (stage == STAGE_WRITE) {
+                write();
+            }
+        }
+
+        private void write() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -224,34 +782,29 @@ public class MediaSaveService extends Service {
             }
 
             // combine to single mpo
-            String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
-            // Try to get the real image size after add exif.
-            File f = new File(path);
-            if (f.exists() && f.isFile()) {
-                size = (int) f.length();
-            }
-            return Storage.addImage(resolver, title, date, loc, orientation,
-                    size, path, width, height, pictureFormat);
+            path = Storage.generateFilepath(title, pictureFormat);
+            // The byte count of the stream, including the MPO headers, or -1
+            // if the write failed.
+            size = Math.max(MpoInterface.writeMpo(mpo, path), 0);
+        }
+
+        @Override
+        public String toString() {
+            return "mpo " + title;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null)
-                listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
+        long getWrittenBytes() {
+            return size;
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveRequest extends SaveRequest {
+        // Holds the JPEG until the encode stage has copied it to the spool
+        // entry, if there is one.
         private byte[] data;
+        private SaveSpool spool;
+        private SaveSpool.Entry spoolEntry;
         private String title;
         private long date;
         private Location loc;
@@ -259,13 +812,18 @@ public class MediaSaveService extends Service {
         private int orientation;
         private ExifInterface exif;
         private ContentResolver resolver;
-        private OnMediaSavedListener listener;
         private String pictureFormat;
+        private String path;
+        private int size;
 
-        public ImageSaveTask(byte[] data, String title, long date, Location loc,
+        public ImageSaveRequest(byte[] data, SaveSpool spool, SaveSpool.Entry spoolEntry,
+                             int length, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
+            super(listener, spoolEntry == null ? length : 0);
             this.data = data;
+            this.spool = spool;
+            this.spoolEntry = spoolEntry;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -274,17 +832,58 @@ public class MediaSaveService extends Service {
             this.orientation = orientation;
             this.exif = exif;
             this.resolver = resolver;
-            this.listener = listener;
             this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
+        boolean isImage() {
+            return true;
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        ContentValues getInsertValues() {
+            return Storage.getContentValuesForData(title, date, loc, orientation,
+                    size, path, width, height, pictureFormat);
+        }
+
+        @Override
+        ContentResolver getResolver() {
+            return resolver;
+        }
+
+        @Override
+        void release() {
+            if (spoolEntry != null) {
+                releaseSpool(spool, spoolEntry);
+                spoolEntry = null;
+            }
+        }
+
+        @Override
+        boolean hasStage(int stage) {
+            return true;
+        }
+
+        @Override
+        void runStage(int stage) throws IOException {
+            // The insert goes through runInsertBatch().
+            if (stage == STAGE_ENCODE) {
+                encode();
+                if (spoolEntry != null) {
+                    spool.write(spoolEntry, data);
+                    data = null;
+                }
+            } else if (stage == STAGE_WRITE && spoolEntry != null) {
+                path = Storage.generateFilepath(title, pictureFormat);
+                size = spool.writeTo(spoolEntry, path, exif);
+            } else if (stage == STAGE_WRITE) {
+                path = Storage.generateFilepath(title, pictureFormat);
+                // Returns the exact size including the EXIF header.
+                size = Storage.writeFile(path, data, exif, pictureFormat);
+            }
+        }
+
+        private void encode() throws IOException {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -293,40 +892,43 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        public String toString() {
+            return "image " + title;
+        }
+
+        @Override
+        long getWrittenBytes() {
+            return size;
         }
     }
 
-    private class VideoSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class VideoSaveRequest extends SaveRequest {
         private String path;
         private long duration;
         private ContentValues values;
-        private OnMediaSavedListener listener;
         private ContentResolver resolver;
 
-        public VideoSaveTask(String path, long duration, ContentValues values,
+        public VideoSaveRequest(String path, long duration, ContentValues values,
                 OnMediaSavedListener l, ContentResolver r) {
+            super(l, 0);
             this.path = path;
             this.duration = duration;
             this.values = new ContentValues(values);
-            this.listener = l;
             this.resolver = r;
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        boolean hasStage(int stage) {
+            return stage == STAGE_INSERT;
+        }
+
+        @Override
+        void runStage(int stage) {
             values.put(Video.Media.SIZE, new File(path).length());
             values.put(Video.Media.DURATION, duration);
-            Uri uri = null;
             try {
                 Uri videoTable = Uri.parse(VIDEO_BASE_URI);
                 uri = resolver.insert(videoTable, values);
@@ -349,12 +951,11 @@ public class MediaSaveService extends Service {
             } finally {
                 Log.v(TAG, "Current video URI: " + uri);
             }
-            return uri;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
+        public String toString() {
+            return "video " + path;
         }
     }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.camera.util.PersistUtil;
+import com.android.internal.util.MemInfoReader;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Samples system memory and the app heap on a background thread and
+ * publishes the result as an immutable Snapshot, so capture loops such as
+ * longshot can check them without any I/O or locking. Sampling starts when
+ * longshot begins or a snapshot is read, and stops by itself once nobody has
+ * read one for a while. Memory trim signals are sampled right away and
+ * flagged in the next snapshot. Only the monitor thread samples.
+ */
+public class MemoryMonitor implements ComponentCallbacks2 {
+    private static final String TAG = "MemoryMonitor";
+
+    // Stop sampling when no snapshot was read for this long.
+    private static final long IDLE_STOP_MS = 2000;
+
+    private static MemoryMonitor sMonitor;
+
+    public static class Snapshot {
+        public final long uptimeMs;
+        // Free plus cached system memory in bytes.
+        public final long availMem;
+        public final long freeMem;
+        public final long cachedMem;
+        // Memory below which the system starts killing services.
+        public final long lowMemThreshold;
+        // Heap the app can still grow into.
+        public final long remainHeap;
+        // Highest trim level seen since the previous sample, 0 if none.
+        public final int trimLevel;
+
+        Snapshot(long uptimeMs, long freeMem, long cachedMem, long lowMemThreshold,
+                long remainHeap, int trimLevel) {
+            this.uptimeMs = uptimeMs;
+            this.freeMem = freeMem;
+            this.cachedMem = cachedMem;
+            this.availMem = freeMem + cachedMem;
+            this.lowMemThreshold = lowMemThreshold;
+            this.remainHeap = remainHeap;
+            this.trimLevel = trimLevel;
+        }
+
+        public boolean isSystemMemoryLow() {
+            return availMem <= lowMemThreshold
+                    || trimLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        }
+
+        @Override
+        public String toString() {
+            return "free=" + freeMem + " cached=" + cachedMem + " threshold=" + lowMemThreshold
+                    + " heap=" + remainHeap + " trim=" + trimLevel;
+        }
+    }
+
+    private final Context mContext;
+    private final long mIntervalMs = PersistUtil.getMemorySampleInterval();
+    private final Handler mHandler;
+    private final MemInfoReader mReader = new MemInfoReader();
+    private volatile Snapshot mSnapshot;
+    private volatile long mLastReadMs;
+    private final AtomicInteger mPendingTrimLevel = new AtomicInteger();
+    private final AtomicBoolean mSampling = new AtomicBoolean(false);
+    // Monitor thread only.
+    private long mLowMemThreshold;
+
+    public static void initialize(Context context) {
+        if (sMonitor == null) {
+            sMonitor = new MemoryMonitor(context);
+            context.registerComponentCallbacks(sMonitor);
+        }
+    }
+
+    public static synchronized MemoryMonitor instance() {
+        return sMonitor;
+    }
+
+    private MemoryMonitor(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /*
+     * Returns the latest snapshot without blocking, and keeps sampling
+     * alive. Null until the first sample is taken.
+     */
+    public Snapshot getSnapshot() {
+        startSampling();
+        return mSnapshot;
+    }
+
+    /* Samples right away and then periodically while snapshots are read. */
+    public void startSampling() {
+        mLastReadMs = SystemClock.uptimeMillis();
+        if (mSampling.compareAndSet(false, true)) {
+            mHandler.post(mSampleRunnable);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int pending;
+        do {
+            pending = mPendingTrimLevel.get();
+        } while (level > pending && !mPendingTrimLevel.compareAndSet(pending, level));
+        mHandler.post(mSampleRunnable);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private boolean continueSampling() {
+        if (!mSampling.get()) {
+            return false;
+        }
+        if (SystemClock.uptimeMillis() - mLastReadMs <= IDLE_STOP_MS) {
+            return true;
+        }
+        mSampling.set(false);
+        // A reader may have come in before the flag was cleared.
+        return SystemClock.uptimeMillis() - mLastReadMs <= IDLE_STOP_MS
+                && mSampling.compareAndSet(false, true);
+    }
+
+    private void sample() {
+        if (mLowMemThreshold == 0) {
+            ActivityManager am = (ActivityManager) mContext.getSystemService(
+                    Context.ACTIVITY_SERVICE);
+            ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(memInfo);
+            mLowMemThreshold = memInfo.secondaryServerThreshold;
+        }
+        mReader.readMemInfo();
+        long[] info = mReader.getRawInfo();
+        Runtime runtime = Runtime.getRuntime();
+        int trimLevel = mPendingTrimLevel.getAndSet(0);
+        mSnapshot = new Snapshot(SystemClock.uptimeMillis(),
+                info[Debug.MEMINFO_FREE] * 1024, info[Debug.MEMINFO_CACHED] * 1024,
+                mLowMemThreshold, runtime.maxMemory() - runtime.totalMemory(), trimLevel);
+    }
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(this);
+            sample();
+            if (continueSampling()) {
+                mHandler.postDelayed(this, mIntervalMs);
+            }
+        }
+    };
+}
@@ -42,7 +42,6 @@ import android.media.SoundPool;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Debug;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -93,8 +92,6 @@ import android.content.DialogInterface;
 import android.text.InputType;
 import android.text.TextUtils;
 
-import com.android.internal.util.MemInfoReader;
-import android.app.ActivityManager;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -102,6 +99,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
@@ -240,7 +239,6 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
     // Currently, this cancel threshold selection is based on test experiments,
     // we can change it based on memory status or other requirements.
     private static final int LONGSHOT_CANCEL_THRESHOLD = 40 * 1024 * 1024;
-    private long SECONDARY_SERVER_MEM;
     private boolean mLongshotActive = false;
 
     // We use a queue to generated names of the images to be used later
@@ -378,57 +376,37 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
     }
     private SelfieThread selfieThread;
 
-    private class MediaSaveNotifyThread extends Thread
-    {
-        private Uri uri;
-        public MediaSaveNotifyThread(Uri uri)
-        {
-            this.uri = uri;
-        }
-        public void setUri(Uri uri)
-        {
-            this.uri = uri;
-        }
-        public void run()
-        {
-            while(mLongshotActive) {
-                try {
-                    Thread.sleep(10);
-                } catch(InterruptedException e) {
-                }
-            }
-            mActivity.runOnUiThread(new Runnable() {
-                public void run() {
-                    if (uri != null)
-                        mActivity.notifyNewMedia(uri);
+    // Collects the longshot images and reports them once the burst ends.
+    private final BurstSaveNotifier mBurstSaveNotifier = new BurstSaveNotifier(
+            new BurstSaveNotifier.Listener() {
+                @Override
+                public void onBurstSaved(List<Uri> uris) {
+                    mActivity.notifyNewPhotos(uris);
                     mActivity.updateStorageSpaceAndHint();
                     updateRemainingPhotos();
                 }
             });
-            mediaSaveNotifyThread = null;
-        }
-    }
 
-    private MediaSaveNotifyThread mediaSaveNotifyThread;
     private MediaSaveService.OnMediaSavedListener mOnMediaSavedListener =
             new MediaSaveService.OnMediaSavedListener() {
                 @Override
                 public void onMediaSaved(Uri uri) {
-                    if(mLongshotActive) {
-                        if(mediaSaveNotifyThread == null) {
-                            mediaSaveNotifyThread = new MediaSaveNotifyThread(uri);
-                            mediaSaveNotifyThread.start();
-                        }
-                        else
-                            mediaSaveNotifyThread.setUri(uri);
-                    } else {
-                        if (uri != null) {
-                            mActivity.notifyNewMedia(uri);
-                        }
+                    if (!mBurstSaveNotifier.onMediaSaved(uri) && uri != null) {
+                        mActivity.notifyNewMedia(uri);
                     }
                 }
             };
 
+    private void setLongshotActive(boolean active) {
+        mLongshotActive = active;
+        if (active) {
+            MemoryMonitor.instance().startSampling();
+            mBurstSaveNotifier.begin();
+        } else {
+            mBurstSaveNotifier.end(mActivity.getMediaSaveService());
+        }
+    }
+
     private void checkDisplayRotation() {
         // Set the display orientation if display rotation has changed.
         // Sometimes this happens when the device is held upside
@@ -1018,32 +996,22 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
             return false;
         }
 
+        // A cached value, see StorageSpaceTracker.
         if (Storage.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
             Log.w(TAG, "current storage is full");
             return true;
         }
-        if (SECONDARY_SERVER_MEM == 0) {
-            ActivityManager am = (ActivityManager) mActivity.getSystemService(
-                    Context.ACTIVITY_SERVICE);
-            ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-            am.getMemoryInfo(memInfo);
-            SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
-        }
 
-        long totalMemory = Runtime.getRuntime().totalMemory();
-        long maxMemory = Runtime.getRuntime().maxMemory();
-        long remainMemory = maxMemory - totalMemory;
+        // Sampled in the background, see MemoryMonitor.
+        MemoryMonitor.Snapshot snapshot = MemoryMonitor.instance().getSnapshot();
+        // Null before the first sample, only the save queue can be checked then.
 
-        MemInfoReader reader = new MemInfoReader();
-        reader.readMemInfo();
-        long[] info = reader.getRawInfo();
-        long availMem = (info[Debug.MEMINFO_FREE] + info[Debug.MEMINFO_CACHED]) * 1024;
-
-        if (availMem <= SECONDARY_SERVER_MEM || remainMemory <= LONGSHOT_CANCEL_THRESHOLD) {
-            Log.e(TAG, "cancel longshot: free=" + info[Debug.MEMINFO_FREE] * 1024
-                    + " cached=" + info[Debug.MEMINFO_CACHED] * 1024
-                    + " threshold=" + SECONDARY_SERVER_MEM);
-            mLongshotActive = false;
+        MediaSaveService service = mActivity.getMediaSaveService();
+        if ((snapshot != null && (snapshot.isSystemMemoryLow()
+                || snapshot.remainHeap <= LONGSHOT_CANCEL_THRESHOLD))
+                || (service != null && service.isQueueFull())) {
+            Log.e(TAG, "cancel longshot: " + snapshot);
+            setLongshotActive(false);
             RotateTextToast.makeText(mActivity,R.string.msg_cancel_longshot_for_limited_memory,
                 Toast.LENGTH_SHORT).show();
             return true;
@@ -1072,7 +1040,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
 
                 if (++mLongshotSnapNum >= mLongShotMaxSnap &&
                     (mLongShotMaxSnap != -1)) {
-                    mLongshotActive = false;
+                    setLongshotActive(false);
                     mUI.enableShutter(false);
                     mCameraDevice.stopLongshot();
                     return;
@@ -1089,7 +1057,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
                 }
 
                 if(mLongShotCaptureCount == mLongShotCaptureCountLimit) {
-                    mLongshotActive = false;
+                    setLongshotActive(false);
                     return;
                 }
 
@@ -1279,21 +1247,29 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
         dstBitmap.setDensity(DisplayMetrics.DENSITY_DEFAULT);
         int size = dstBitmap.getWidth() * dstBitmap.getHeight();
         ByteArrayOutputStream outStream = new ByteArrayOutputStream(size);
-        dstBitmap.compress(Bitmap.CompressFormat.JPEG, 100, outStream);
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(jpegOrientation);
+        OutputStream out = exif.getExifWriterStream(outStream);
+        try {
+            dstBitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
 
         return outStream.toByteArray();
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree) {
-        ExifInterface exif = new ExifInterface();
-        exif.addOrientationTag(orientationInDegree);
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
+    // Writes the tags added to the EXIF header of a HAL jpeg over the values
+    // it already has, so saving writes jpeg as is instead of rebuilding the
+    // header. Returns false, leaving jpeg unchanged, if they do not fit.
+    private static boolean patchExifInPlace(byte[] jpeg, ExifInterface exif,
+            List<ExifTag> addedTags) {
         try {
-            exif.writeExif(jpeg, jpegOut);
+            return exif.rewriteExif(ByteBuffer.wrap(jpeg), addedTags);
         } catch (IOException e) {
-            Log.e(TAG, "Could not write EXIF", e);
+            return false;
         }
-        return jpegOut.toByteArray();
     }
 
     private final class JpegPictureCallback
@@ -1332,6 +1308,8 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
             }
 
             ExifInterface exif = Exif.getExif(jpegData);
+            // Tags added to the HAL header, see patchExifInPlace().
+            List<ExifTag> addedTags = new ArrayList<ExifTag>();
             boolean overrideMakerAndModelTag = false;
             overrideMakerAndModelTag = mActivity.getResources()
                     .getBoolean(R.bool.override_maker_and_model_tag);
@@ -1339,8 +1317,10 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
             if (overrideMakerAndModelTag) {
                 ExifTag maker = exif.buildTag(ExifInterface.TAG_MAKE, Build.MANUFACTURER);
                 exif.setTag(maker);
+                addedTags.add(maker);
                 ExifTag model = exif.buildTag(ExifInterface.TAG_MODEL, Build.MODEL);
                 exif.setTag(model);
+                addedTags.add(model);
             }
 
             mReceivedSnapNum = mReceivedSnapNum + 1;
@@ -1435,13 +1415,14 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
                 }
 
                 int orientation = Exif.getOrientation(exif);
+                boolean mirrored = false;
                 if(mCameraId == CameraHolder.instance().getFrontCameraId()) {
                     IconListPreference selfieMirrorPref = (IconListPreference) mPreferenceGroup
                             .findPreference(CameraSettings.KEY_SELFIE_MIRROR);
                     if (selfieMirrorPref != null && selfieMirrorPref.getValue() != null &&
                             selfieMirrorPref.getValue().equalsIgnoreCase("enable")) {
                         jpegData = flipJpeg(jpegData, info.orientation, orientation);
-                        jpegData = addExifTags(jpegData, orientation);
+                        mirrored = true;
                     }
                 }
                 if (!mIsImageCaptureIntent) {
@@ -1499,11 +1480,21 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
                               new Rational(mHeading, 1));
                             exif.setTag(directionRefTag);
                             exif.setTag(directionTag);
+                            addedTags.add(directionRefTag);
+                            addedTags.add(directionTag);
                         }
                         String mPictureFormat = mParameters.get(KEY_PICTURE_FORMAT);
+                        ExifInterface saveExif = exif;
+                        if (!mirrored && patchExifInPlace(jpegData, exif, addedTags)) {
+                            // jpegData already holds the final header.
+                            saveExif = null;
+                        }
+                            // This runs on the main thread, so longshot frames
+                            // do not wait for room in the save queue. A full
+                            // queue disables the shutter instead.
                             mActivity.getMediaSaveService().addImage(
                                     jpegData, title, date, mLocation, width, height,
-                                    orientation, exif, mOnMediaSavedListener,
+                                    orientation, saveExif, mOnMediaSavedListener,
                                     mContentResolver, mPictureFormat);
                             if (mRefocus && mReceivedSnapNum == 7) {
                                  mUI.showRefocusToast(mRefocus);
@@ -2274,8 +2265,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
                     CameraUtil.closeSilently(outputStream);
                 }
             } else {
-                ExifInterface exif = Exif.getExif(data);
-                int orientation = Exif.getOrientation(exif);
+                int orientation = Exif.getOrientation(data);
                 Bitmap bitmap = CameraUtil.makeBitmap(data, 50 * 1024);
                 bitmap = CameraUtil.rotate(bitmap, orientation);
                 mActivity.setResultEx(Activity.RESULT_OK,
@@ -2343,7 +2333,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
 
         synchronized(mCameraDevice) {
            if (mCameraState == LONGSHOT) {
-               mLongshotActive = false;
+               setLongshotActive(false);
                mUI.enableShutter(false);
            }
         }
@@ -2483,7 +2473,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
                 if(isLongshotNeedCancel()) {
                     return;
                 }
-                mLongshotActive = true;
+                setLongshotActive(true);
                 setCameraState(PhotoController.LONGSHOT);
                 mFocusManager.doSnap();
             }
@@ -2580,13 +2570,8 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
     }
 
     private void updateRemainingPhotos() {
-        if (mJpegFileSizeEstimation != 0) {
-            mRemainingPhotos = (int)
-                    ((mActivity.getStorageSpaceBytes() - Storage.LOW_STORAGE_THRESHOLD_BYTES)
-                    / mJpegFileSizeEstimation);
-        } else {
-            mRemainingPhotos = -1;
-        }
+        mRemainingPhotos = StorageSpaceTracker.instance()
+                .getRemainingShots(mJpegFileSizeEstimation);
         mUI.updateRemainingPhotos(mRemainingPhotos);
     }
 
@@ -3042,7 +3027,7 @@ public class PhotoModule extends BaseModule<PhotoUI> implements
         if (mCameraDevice != null && mCameraState != PREVIEW_STOPPED) {
             if (mCameraState == LONGSHOT) {
                 mCameraDevice.setLongshot(false);
-                mLongshotActive = false;
+                setLongshotActive(false);
             }
             Log.v(TAG, "stopPreview");
             mCameraDevice.stopPreview();
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+
+/*
+ * Memory-mapped spool file holding pending JPEGs for MediaSaveService, so
+ * that long bursts are limited by disk space instead of the Java heap.
+ * Entries are placed first-fit and can be released in any order.
+ */
+class SaveSpool {
+    private static final String TAG = "CAM_SaveSpool";
+    private static final String SPOOL_FILE_PREFIX = "save_spool";
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMap;
+    private final int mCapacity;
+    // Offset to length of the entries in use.
+    private final TreeMap<Integer, Integer> mUsed = new TreeMap<Integer, Integer>();
+    private int mUsedBytes;
+    private int mLastLength;
+    private boolean mIsClosing;
+
+    public static class Entry {
+        final int offset;
+        final int length;
+
+        Entry(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private SaveSpool(File file, int capacity) throws IOException {
+        mFile = file;
+        mCapacity = capacity;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            mRandomAccessFile.setLength(capacity);
+            mChannel = mRandomAccessFile.getChannel();
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Creates a spool file in dir, or returns null if that is not possible.
+     * Spool files left behind by a killed process are removed first; one
+     * still used by an earlier service instance stays readable through its
+     * open mapping.
+     */
+    public static SaveSpool create(File dir, int capacity) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(SPOOL_FILE_PREFIX)) {
+                    f.delete();
+                }
+            }
+        }
+        File file = null;
+        try {
+            file = File.createTempFile(SPOOL_FILE_PREFIX, null, dir);
+            return new SaveSpool(file, capacity);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create save spool of " + capacity + " bytes", e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Reserves room for length bytes, which are copied in later with
+     * write(). Returns null if there is no room.
+     */
+    public synchronized Entry reserve(int length) {
+        if (mIsClosing) {
+            return null;
+        }
+        int offset = findFree(length);
+        if (offset < 0) {
+            return null;
+        }
+        mUsed.put(offset, length);
+        mUsedBytes += length;
+        mLastLength = length;
+        return new Entry(offset, length);
+    }
+
+    /*
+     * Copies data into a reserved entry. This may fault in pages of the
+     * spool file, so it runs on a save thread rather than the caller's.
+     */
+    public void write(Entry entry, byte[] data) {
+        ByteBuffer buf = mMap.duplicate();
+        buf.position(entry.offset);
+        buf.put(data, 0, entry.length);
+    }
+
+    public synchronized void release(Entry entry) {
+        if (mUsed.remove(entry.offset) != null) {
+            mUsedBytes -= entry.length;
+        }
+        if (mIsClosing && mUsed.isEmpty()) {
+            close();
+        }
+    }
+
+    /* Whether an entry as large as the last one would still fit. */
+    public synchronized boolean hasRoom() {
+        return findFree(mLastLength) >= 0;
+    }
+
+    public synchronized int getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /* Read-only view of the entry. */
+    public ByteBuffer slice(Entry entry) {
+        ByteBuffer buf = mMap.asReadOnlyBuffer();
+        buf.position(entry.offset);
+        buf.limit(entry.offset + entry.length);
+        return buf.slice();
+    }
+
+    /*
+     * Writes the entry to path, merging the EXIF header when exif is not
+     * null. Without EXIF the bytes are copied by the kernel. Returns the number
+     * of bytes written.
+     */
+    public int writeTo(Entry entry, String path, ExifInterface exif) throws IOException {
+        if (exif != null) {
+            // Header and EXIF followed by the mapped JPEG body.
+            return Storage.writeBuffers(path, exif.getExifWriterBuffers(slice(entry)));
+        }
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+            while (position < entry.length) {
+                position += mChannel.transferTo(entry.offset + position,
+                        entry.length - position, outChannel);
+            }
+            return (int) position;
+        } finally {
+            out.close();
+        }
+    }
+
+    /* Closes the spool once the pending entries are released. */
+    public synchronized void closeWhenDrained() {
+        mIsClosing = true;
+        if (mUsed.isEmpty()) {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close save spool", e);
+        }
+        mFile.delete();
+    }
+
+    private int findFree(int length) {
+        int start = 0;
+        for (Map.Entry<Integer, Integer> used : mUsed.entrySet()) {
+            if (used.getKey() - start >= length) {
+                return start;
+            }
+            start = used.getKey() + used.getValue();
+        }
+        return mCapacity - start >= length ? start : -1;
+    }
+}
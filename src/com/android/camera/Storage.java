@@ -18,8 +18,17 @@ package com.android.camera;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
@@ -27,9 +36,12 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import com.android.camera.data.LocalData;
@@ -55,14 +67,24 @@ public class Storage {
     public static final long UNKNOWN_SIZE = -3L;
     public static final long LOW_STORAGE_THRESHOLD_BYTES = 60 * 1024 * 1024;
 
+    // Sync written files to storage in the background instead of leaving it
+    // to the kernel.
+    private static final boolean ASYNC_FSYNC =
+            android.os.SystemProperties.getBoolean("persist.camera.perf.asyncfsync", false);
+
     private static boolean sSaveSDCard = false;
+    private static ExecutorService sSyncExecutor;
 
     public static boolean isSaveSDCard() {
         return sSaveSDCard;
     }
 
     public static void setSaveSDCard(boolean saveSDCard) {
+        boolean changed = saveSDCard != sSaveSDCard;
         sSaveSDCard = saveSDCard;
+        if (changed && StorageSpaceTracker.instance() != null) {
+            StorageSpaceTracker.instance().invalidate();
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -74,12 +96,14 @@ public class Storage {
         }
     }
 
+    // The tags in exif are written into the header jpeg already has, see
+    // ExifInterface.getExifPatchBuffers(). jpeg may be modified.
     public static int writeFile(String path, byte[] jpeg, ExifInterface exif,
             String mimeType) {
         if (exif != null && (mimeType == null ||
             mimeType.equalsIgnoreCase("jpeg"))) {
             try {
-                return exif.writeExif(jpeg, path);
+                return writeBuffers(path, exif.getExifPatchBuffers(ByteBuffer.wrap(jpeg)));
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
             }
@@ -88,28 +112,76 @@ public class Storage {
                  File dir = new File(RAW_DIRECTORY);
                  dir.mkdirs();
             }
-            writeFile(path, jpeg);
-            return jpeg.length;
+            return writeFile(path, jpeg);
         }
         return 0;
     }
 
-    public static void writeFile(String path, byte[] data) {
-        FileOutputStream out = null;
+    // Returns the number of bytes written, 0 on failure.
+    public static int writeFile(String path, byte[] data) {
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
+            return writeBuffers(path, new ByteBuffer[] { ByteBuffer.wrap(data) });
         } catch (Exception e) {
             Log.e(TAG, "Failed to write data", e);
-        } finally {
+        }
+        return 0;
+    }
+
+    // Writes the buffers to path with a gathering write into a file
+    // preallocated to their total size, and returns the number of bytes
+    // written. The buffers are consumed.
+    public static int writeBuffers(String path, ByteBuffer[] buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer b : buffers) {
+            total += b.remaining();
+        }
+        final FileOutputStream out = new FileOutputStream(path);
+        boolean closeLater = false;
+        try {
             try {
+                Os.posix_fallocate(out.getFD(), 0, total);
+            } catch (ErrnoException e) {
+                // Not every file system supports it, the write still works.
+            }
+            FileChannel channel = out.getChannel();
+            long written = 0;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            if (ASYNC_FSYNC) {
+                getSyncExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            out.getFD().sync();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to sync file", e);
+                        } finally {
+                            try {
+                                out.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Failed to close file after write", e);
+                            }
+                        }
+                    }
+                });
+                closeLater = true;
+            }
+            return (int) written;
+        } finally {
+            if (!closeLater) {
                 out.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to close file after write", e);
             }
         }
     }
 
+    private static synchronized ExecutorService getSyncExecutor() {
+        if (sSyncExecutor == null) {
+            sSyncExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sSyncExecutor;
+    }
+
     // Save the image with a given mimeType and add it the MediaStore.
     public static Uri addImage(ContentResolver resolver, String title, long date,
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
@@ -117,11 +189,7 @@ public class Storage {
 
         String path = generateFilepath(title, mimeType);
         int size = writeFile(path, jpeg, exif, mimeType);
-        // Try to get the real image size after add exif.
-        File f = new File(path);
-        if (f.exists() && f.isFile()) {
-            size = (int) f.length();
-        }
+        onBytesWritten(size);
         return addImage(resolver, title, date, location, orientation,
                 size, path, width, height, mimeType);
     }
@@ -168,6 +236,36 @@ public class Storage {
          return insertImage(resolver, values);
     }
 
+    // Add several images to media store in one transaction. Falls back to
+    // inserting them one by one if the batch fails. The returned uris are in
+    // the order of values, null where an insert failed.
+    public static Uri[] addImages(ContentResolver resolver, List<ContentValues> values) {
+        Uri[] uris = new Uri[values.size()];
+        if (values.size() == 1) {
+            uris[0] = insertImage(resolver, values.get(0));
+            return uris;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < uris.length && i < results.length; i++) {
+                uris[i] = results[i].uri;
+            }
+            return uris;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to batch " + values.size() + " MediaStore inserts" + th);
+        }
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = insertImage(resolver, values.get(i));
+        }
+        return uris;
+    }
+
     // Overwrites the file and updates the MediaStore, or inserts the image if
     // one does not already exist.
     public static void updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
@@ -263,7 +361,24 @@ public class Storage {
         return UNKNOWN_SIZE;
     }
 
+    // Returns the cached free space, see StorageSpaceTracker.
     public static long getAvailableSpace() {
+        StorageSpaceTracker tracker = StorageSpaceTracker.instance();
+        if (tracker != null) {
+            return tracker.getAvailableSpace();
+        }
+        return queryAvailableSpace();
+    }
+
+    public static void onBytesWritten(long bytes) {
+        StorageSpaceTracker tracker = StorageSpaceTracker.instance();
+        if (tracker != null) {
+            tracker.onBytesWritten(bytes);
+        }
+    }
+
+    // Queries the file system for the free space of the save location.
+    public static long queryAvailableSpace() {
         if (isSaveSDCard()) {
             return getSDCardAvailableSpace();
         } else {
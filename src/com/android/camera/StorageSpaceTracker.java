@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Keeps the free space of the current save location without querying the
+ * file system on every read. Reads take the last statfs result minus the
+ * bytes saves wrote since that query started, and the file system is
+ * queried again in the background when the result gets older than the
+ * refresh interval or the media state changes.
+ */
+public class StorageSpaceTracker {
+    private static final String TAG = "StorageSpaceTracker";
+
+    // Marks a cache that has to be queried before it can be read.
+    private static final long NOT_QUERIED = Long.MIN_VALUE;
+
+    private static StorageSpaceTracker sTracker;
+
+    private final long mRefreshIntervalMs = PersistUtil.getStorageRefreshInterval();
+    // Bytes written since start, only ever grows.
+    private final AtomicLong mWrittenBytes = new AtomicLong();
+    // Orders the queries, so a slow one cannot replace a newer result.
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicReference<Query> mQuery =
+            new AtomicReference<Query>(new Query(NOT_QUERIED, 0, 0, 0));
+    private final AtomicBoolean mRefreshPending = new AtomicBoolean(false);
+    private final Handler mHandler;
+
+    private static class Query {
+        final long space;
+        // mWrittenBytes when the query started.
+        final long writtenBytes;
+        final long queriedAtMs;
+        final long generation;
+
+        Query(long space, long writtenBytes, long queriedAtMs, long generation) {
+            this.space = space;
+            this.writtenBytes = writtenBytes;
+            this.queriedAtMs = queriedAtMs;
+            this.generation = generation;
+        }
+    }
+
+    public static synchronized void initialize(Context context) {
+        if (sTracker == null) {
+            sTracker = new StorageSpaceTracker(context);
+        }
+    }
+
+    public static synchronized StorageSpaceTracker instance() {
+        return sTracker;
+    }
+
+    private StorageSpaceTracker(Context context) {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addDataScheme("file");
+        context.registerReceiver(mMediaBroadcastReceiver, filter);
+    }
+
+    /*
+     * Returns the estimated free space in bytes, or one of the
+     * Storage.UNAVAILABLE, PREPARING and UNKNOWN_SIZE states. Only the very
+     * first call queries the file system on the calling thread.
+     */
+    public long getAvailableSpace() {
+        Query query = mQuery.get();
+        if (query.space == NOT_QUERIED) {
+            return refresh();
+        }
+        if (SystemClock.uptimeMillis() - query.queriedAtMs > mRefreshIntervalMs) {
+            refreshAsync();
+        }
+        return estimate(query);
+    }
+
+    private long estimate(Query query) {
+        if (query.space < 0) {
+            // Not a size, the next query sorts it out.
+            return query.space;
+        }
+        return Math.max(0, query.space - (mWrittenBytes.get() - query.writtenBytes));
+    }
+
+    /*
+     * Returns how many more shots of bytesPerShot fit above the low storage
+     * threshold, or -1 if that is not known.
+     */
+    public int getRemainingShots(long bytesPerShot) {
+        long space = getAvailableSpace();
+        if (bytesPerShot <= 0 || space < 0) {
+            return -1;
+        }
+        return (int) Math.max(0, (space - Storage.LOW_STORAGE_THRESHOLD_BYTES) / bytesPerShot);
+    }
+
+    /* Queries the file system now and returns the result. */
+    public long refresh() {
+        long generation = mGeneration.incrementAndGet();
+        // Writes finishing during the query may be counted twice, which
+        // errs on the safe side until the next query.
+        long writtenBytes = mWrittenBytes.get();
+        Query query = new Query(Storage.queryAvailableSpace(), writtenBytes,
+                SystemClock.uptimeMillis(), generation);
+        Query current;
+        do {
+            current = mQuery.get();
+            if (current.generation > generation) {
+                break;
+            }
+        } while (!mQuery.compareAndSet(current, query));
+        return estimate(query);
+    }
+
+    public void refreshAsync() {
+        if (mRefreshPending.compareAndSet(false, true)) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mRefreshPending.set(false);
+                    refresh();
+                }
+            });
+        }
+    }
+
+    /* Drops the cached value, e.g. when the save location changes. */
+    public void invalidate() {
+        mQuery.set(new Query(NOT_QUERIED, 0, 0, mGeneration.incrementAndGet()));
+    }
+
+    /* Accounts for bytes written to the save location since the last query. */
+    public void onBytesWritten(long bytes) {
+        if (bytes > 0) {
+            mWrittenBytes.addAndGet(bytes);
+        }
+    }
+
+    private BroadcastReceiver mMediaBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Media state changed: " + intent.getAction());
+            refreshAsync();
+        }
+    };
+}
@@ -21,7 +21,9 @@ import android.app.ActivityManager;
 import android.app.Application;
 import android.content.Context;
 
+import com.android.camera.MemoryMonitor;
 import com.android.camera.SDCard;
+import com.android.camera.StorageSpaceTracker;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.UsageStatistics;
 
@@ -46,6 +48,8 @@ public class CameraApp extends Application {
         UsageStatistics.initialize(this);
         CameraUtil.initialize(this);
         SDCard.initialize(this);
+        StorageSpaceTracker.initialize(this);
+        MemoryMonitor.initialize(this);
     }
 
     public static Context getContext() {
@@ -131,10 +131,10 @@ public final class ImageLoader {
             String path = uri.getPath();
             ExifInterface exif = new ExifInterface();
             try {
-                exif.readExif(path);
-                Integer tagval = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (tagval != null) {
-                    int orientation = tagval;
+                ExifTag tag = exif.readTags(path, ExifInterface.TAG_ORIENTATION)[0];
+                int[] values = (tag == null) ? null : tag.getValueAsInts();
+                if (values != null && values.length > 0) {
+                    int orientation = values[0];
                     switch(orientation) {
                         case ORI_NORMAL:
                         case ORI_ROTATE_90:
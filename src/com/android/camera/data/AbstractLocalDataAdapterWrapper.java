@@ -20,6 +20,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 
+import java.util.List;
+
 /**
  * An abstract {@link LocalDataAdapter} implementation to wrap another
  * {@link LocalDataAdapter}. All implementations related to data id is not
@@ -74,6 +76,11 @@ public abstract class AbstractLocalDataAdapterWrapper implements LocalDataAdapte
         mAdapter.addNewPhoto(resolver, uri);
     }
 
+    @Override
+    public void addNewPhotos(ContentResolver resolver, List<Uri> uris) {
+        mAdapter.addNewPhotos(resolver, uris);
+    }
+
     @Override
     public void insertData(LocalData data) {
         mAdapter.insertData(data);
@@ -18,6 +18,7 @@ package com.android.camera.data;
 
 import android.app.Activity;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -33,6 +34,7 @@ import com.android.camera.ui.FilmStripView.ImageData;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * A {@link LocalDataAdapter} that provides data in the camera folder.
@@ -188,6 +190,15 @@ public class CameraDataAdapter implements LocalDataAdapter {
         c.close();
     }
 
+    @Override
+    public void addNewPhotos(ContentResolver cr, List<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        // A long burst makes a large query, so it runs in the background.
+        new AddPhotosTask(uris).execute(cr);
+    }
+
     @Override
     public int findDataByContentUri(Uri uri) {
         // LocalDataList will return in O(1) if the uri is not contained.
@@ -373,6 +384,62 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
+    private class AddPhotosTask extends AsyncTask<ContentResolver, Void, List<LocalData>> {
+        private final List<Uri> mUris;
+
+        AddPhotosTask(List<Uri> uris) {
+            mUris = new ArrayList<Uri>(uris);
+        }
+
+        /**
+         * Loads the photos with the given {@link Uri}s in the camera folder
+         * with one query.
+         *
+         * @param resolver {@link ContentResolver} to load the data.
+         * @return The loaded data.
+         */
+        @Override
+        protected List<LocalData> doInBackground(ContentResolver... resolver) {
+            List<LocalData> l = new ArrayList<LocalData>();
+            StringBuilder ids = new StringBuilder();
+            for (Uri uri : mUris) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(ContentUris.parseId(uri));
+            }
+            Cursor c = resolver[0].query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    LocalMediaData.PhotoData.QUERY_PROJECTION,
+                    MediaStore.Images.Media._ID + " in (" + ids + ") and (" +
+                    MediaStore.Images.Media.DATA + " like ? or " +
+                    MediaStore.Images.Media.DATA + " like ? )", getCameraPath(),
+                    LocalMediaData.PhotoData.QUERY_ORDER);
+            if (c == null) {
+                return l;
+            }
+            while (c.moveToNext()) {
+                LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
+                if (data != null) {
+                    l.add(data);
+                }
+            }
+            c.close();
+            return l;
+        }
+
+        @Override
+        protected void onPostExecute(List<LocalData> l) {
+            for (LocalData data : l) {
+                int pos = findDataByContentUri(data.getContentUri());
+                if (pos != -1) {
+                    updateData(pos, data);
+                } else {
+                    insertData(data);
+                }
+            }
+        }
+    }
+
     private class DeletionTask extends AsyncTask<LocalData, Void, Void> {
         Context mContext;
 
@@ -20,6 +20,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 
+import java.util.List;
+
 import static com.android.camera.ui.FilmStripView.DataAdapter;
 
 /**
@@ -67,6 +69,15 @@ public interface LocalDataAdapter extends DataAdapter {
      */
     public void addNewPhoto(ContentResolver resolver, Uri uri);
 
+    /**
+     * Adds several new local photos with a single query, which runs in the
+     * background.
+     *
+     * @param resolver  {@link ContentResolver} used to add the data.
+     * @param uris      {@link Uri}s of the photos.
+     */
+    public void addNewPhotos(ContentResolver resolver, List<Uri> uris);
+
     /**
      * Refresh the data by {@link Uri}.
      *
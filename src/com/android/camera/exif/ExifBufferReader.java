@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * This class reads the EXIF header of a JPEG held in a {@link ByteBuffer}
+ * without copying it. Only the JPEG markers up to the APP1 segment and IFD0
+ * are read up front. The other IFDs and the thumbnail are read by
+ * {@link ExifData} when they are first accessed, and the entries of an IFD
+ * are decoded into tags by {@link IfdData} when they are first accessed, so
+ * the buffer must stay unchanged until then.
+ * <p>
+ * Tag values are read the same way as by {@link ExifParser}. Values that do
+ * not fit in the APP1 segment drop the tag instead of failing the whole read.
+ */
+class ExifBufferReader {
+    private static final String TAG = "ExifBufferReader";
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int NOT_FOUND = -1;
+
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+    private static final short TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+    private static final short TAG_STRIP_OFFSETS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_OFFSETS);
+    private static final short TAG_STRIP_BYTE_COUNTS = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_STRIP_BYTE_COUNTS);
+
+    private final ExifInterface mInterface;
+    // The TIFF header and the rest of the APP1 segment, offsets are relative to it.
+    private ByteBuffer mTiff;
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+    private final boolean[] mIfdLoaded = new boolean[IfdId.TYPE_IFD_COUNT];
+    private boolean mThumbnailLoaded;
+    private int mThumbnailOffset = NOT_FOUND;
+    private ExifTag mThumbnailSizeTag;
+    private ExifTag mStripOffsetsTag;
+    private ExifTag mStripSizeTag;
+
+    ExifBufferReader(ExifInterface iRef) {
+        mInterface = iRef;
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = NOT_FOUND;
+        }
+    }
+
+    /**
+     * Finds the EXIF header in the jpeg between its position and limit,
+     * reads IFD0 and returns an {@link ExifData} that reads the rest on
+     * demand. The position of jpeg is not changed.
+     *
+     * @throws ExifInvalidFormatException
+     */
+    protected ExifData read(ByteBuffer jpeg) throws ExifInvalidFormatException {
+        ByteBuffer buf = jpeg.slice();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        if (!seekTiffData(buf)) {
+            return new ExifData(ExifInterface.DEFAULT_BYTE_ORDER);
+        }
+        mTiff = buf.slice();
+        if (mTiff.limit() < ExifParser.DEFAULT_IFD0_OFFSET) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        short byteOrder = mTiff.getShort(0);
+        if (byteOrder == ExifParser.LITTLE_ENDIAN_TAG) {
+            mTiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == ExifParser.BIG_ENDIAN_TAG) {
+            mTiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        if (mTiff.getShort(2) != ExifParser.TIFF_HEADER_TAIL) {
+            throw new ExifInvalidFormatException("Invalid TIFF header");
+        }
+        long ifd0 = mTiff.getInt(4) & 0xffffffffL;
+        if (ifd0 > Integer.MAX_VALUE) {
+            throw new ExifInvalidFormatException("Invalid offset " + ifd0);
+        }
+        mIfdOffsets[IfdId.TYPE_IFD_0] = (int) ifd0;
+
+        ExifData data = new ExifData(mTiff.order());
+        loadIfd(data, IfdId.TYPE_IFD_0);
+        data.setLazyReader(this);
+        return data;
+    }
+
+    private boolean seekTiffData(ByteBuffer buf) throws ExifInvalidFormatException {
+        if (buf.remaining() < 4 || buf.getShort() != JpegHeader.SOI) {
+            throw new ExifInvalidFormatException("Invalid JPEG format");
+        }
+        short marker = buf.getShort();
+        while (marker != JpegHeader.EOI && !JpegHeader.isSofMarker(marker)) {
+            if (buf.remaining() < 2) {
+                return false;
+            }
+            int length = buf.getShort() & 0xffff;
+            // Some invalid formatted image contains multiple APP1,
+            // try to find the one with Exif data.
+            if (marker == JpegHeader.APP1 && length >= 8 && buf.remaining() >= 6) {
+                int header = buf.getInt();
+                short headerTail = buf.getShort();
+                length -= 6;
+                if (header == ExifParser.EXIF_HEADER
+                        && headerTail == ExifParser.EXIF_HEADER_TAIL) {
+                    // The length counts its own two bytes as well.
+                    buf.limit(buf.position() + Math.min(length - 2, buf.remaining()));
+                    return true;
+                }
+            }
+            if (length < 2 || length > buf.remaining()) {
+                Log.w(TAG, "Invalid JPEG format.");
+                return false;
+            }
+            buf.position(buf.position() + length - 2);
+            marker = buf.getShort();
+        }
+        return false;
+    }
+
+    /**
+     * Reads the given IFD into data unless it was read or dropped already.
+     * The IFDs that hold the offset of ifdId are read first.
+     */
+    protected void loadIfd(ExifData data, int ifdId) {
+        if (mIfdLoaded[ifdId]) {
+            return;
+        }
+        mIfdLoaded[ifdId] = true;
+        switch (ifdId) {
+            case IfdId.TYPE_IFD_1:
+            case IfdId.TYPE_IFD_EXIF:
+            case IfdId.TYPE_IFD_GPS:
+                loadIfd(data, IfdId.TYPE_IFD_0);
+                break;
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                loadIfd(data, IfdId.TYPE_IFD_EXIF);
+                break;
+        }
+        int offset = mIfdOffsets[ifdId];
+        if (offset == NOT_FOUND) {
+            return;
+        }
+        try {
+            readIfd(data, ifdId, offset);
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Failed to read IFD " + ifdId + ", the file may be broken.", e);
+        }
+    }
+
+    /** Marks the IFD as read, e.g. when it was removed before it was read. */
+    protected void dropIfd(int ifdId) {
+        mIfdLoaded[ifdId] = true;
+    }
+
+    /**
+     * Reads the thumbnail or strips referenced from IFD1 into data unless they
+     * were read or dropped already.
+     */
+    protected void loadThumbnail(ExifData data) {
+        if (mThumbnailLoaded) {
+            return;
+        }
+        loadIfd(data, IfdId.TYPE_IFD_1);
+        mThumbnailLoaded = true;
+        if (mThumbnailOffset != NOT_FOUND && mThumbnailSizeTag != null) {
+            int size = (int) mThumbnailSizeTag.getValueAt(0);
+            byte[] thumb = readBytes(mThumbnailOffset, size);
+            if (thumb != null) {
+                data.setCompressedThumbnail(thumb);
+            } else {
+                Log.w(TAG, "Failed to read the compressed thumbnail");
+            }
+        } else if (mStripOffsetsTag != null && mStripSizeTag != null) {
+            int size = (int) mStripSizeTag.getValueAt(0);
+            for (int i = 0; i < mStripOffsetsTag.getComponentCount(); i++) {
+                byte[] strip = readBytes((int) mStripOffsetsTag.getValueAt(i), size);
+                if (strip != null) {
+                    data.setStripBytes(i, strip);
+                } else {
+                    Log.w(TAG, "Failed to read the strip bytes");
+                }
+            }
+        }
+    }
+
+    /** Marks the thumbnail as read, e.g. when it was replaced before. */
+    protected void dropThumbnail() {
+        mThumbnailLoaded = true;
+    }
+
+    protected boolean isFullyLoaded() {
+        if (!mThumbnailLoaded) {
+            return false;
+        }
+        for (boolean loaded : mIfdLoaded) {
+            if (!loaded) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readIfd(ExifData data, int ifdId, int offset) {
+        if (offset + ExifParser.OFFSET_SIZE > mTiff.limit()) {
+            Log.w(TAG, "Invalid offset of IFD " + ifdId + ": " + offset);
+            return;
+        }
+        int numOfTags = mTiff.getShort(offset) & 0xffff;
+        int endOfTags = offset + ExifParser.OFFSET_SIZE + ExifParser.TAG_SIZE * numOfTags;
+        if (endOfTags > mTiff.limit()) {
+            Log.w(TAG, "Invalid size of IFD " + ifdId);
+            return;
+        }
+        IfdData ifd = new IfdData(ifdId);
+        data.addIfdData(ifd);
+        for (int entry = offset + ExifParser.OFFSET_SIZE; entry < endOfTags;
+                entry += ExifParser.TAG_SIZE) {
+            if (!checkEntry(entry)) {
+                continue;
+            }
+            // Only the tags pointing at other data are decoded now.
+            short tagId = mTiff.getShort(entry);
+            ifd.setEntry(tagId, entry, this);
+            if (isOffsetOrImageTag(tagId)) {
+                checkOffsetOrImageTag(ifd.getTag(tagId));
+            }
+        }
+        // There is a link to ifd1 at the end of ifd0
+        if (ifdId == IfdId.TYPE_IFD_0 && endOfTags + 4 <= mTiff.limit()) {
+            long ifd1 = mTiff.getInt(endOfTags) & 0xffffffffL;
+            if (ifd1 != 0 && ifd1 <= Integer.MAX_VALUE) {
+                mIfdOffsets[IfdId.TYPE_IFD_1] = (int) ifd1;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the IFD entry at the given position can be decoded by
+     * {@link #readTag(int, int)}.
+     */
+    private boolean checkEntry(int entry) {
+        short tagId = mTiff.getShort(entry);
+        short dataFormat = mTiff.getShort(entry + 2);
+        long numOfComp = mTiff.getInt(entry + 4) & 0xffffffffL;
+        // Some invalid image file contains invalid data type. Ignore those tags
+        if (!ExifTag.isValidType(dataFormat)) {
+            Log.w(TAG, String.format("Tag %04x: Invalid data type %d", tagId, dataFormat));
+            return false;
+        }
+        if (numOfComp > Integer.MAX_VALUE) {
+            Log.w(TAG, String.format("Tag %04x: Invalid count %d", tagId, numOfComp));
+            return false;
+        }
+        long dataSize = numOfComp * ExifTag.getElementSize(dataFormat);
+        if (dataSize > 4) {
+            long offset = mTiff.getInt(entry + 8) & 0xffffffffL;
+            if (offset + dataSize > mTiff.limit()) {
+                Log.w(TAG, String.format("Tag %04x: Failed to read data at: %d",
+                        tagId, offset));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the IFD entry at the given position, which has been checked by
+     * {@link #checkEntry(int)}.
+     */
+    protected ExifTag readTag(int ifdId, int entry) {
+        short tagId = mTiff.getShort(entry);
+        short dataFormat = mTiff.getShort(entry + 2);
+        int numOfComp = mTiff.getInt(entry + 4);
+        ExifTag tag = new ExifTag(tagId, dataFormat, numOfComp, ifdId,
+                numOfComp != ExifTag.SIZE_UNDEFINED);
+        if (tag.getDataSize() > 4) {
+            int offset = mTiff.getInt(entry + 8);
+            tag.setOffset(offset);
+            readFullTagValue(tag, offset);
+        } else {
+            boolean defCount = tag.hasDefinedCount();
+            // Set defined count to 0 so we can add \0 to non-terminated strings
+            tag.setHasDefinedCount(false);
+            readFullTagValue(tag, entry + 8);
+            tag.setHasDefinedCount(defCount);
+            tag.setOffset(entry + 8);
+        }
+        return tag;
+    }
+
+    private void readFullTagValue(ExifTag tag, int offset) {
+        int count = tag.getComponentCount();
+        switch (tag.getDataType()) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                tag.setValue(readBytes(offset, count));
+                break;
+            case ExifTag.TYPE_ASCII:
+                tag.setValue(count > 0 ? new String(readBytes(offset, count), US_ASCII) : "");
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long value[] = new long[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getInt(offset + i * 4) & 0xffffffffL;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational value[] = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = new Rational(mTiff.getInt(offset + i * 8) & 0xffffffffL,
+                            mTiff.getInt(offset + i * 8 + 4) & 0xffffffffL);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int value[] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getShort(offset + i * 2) & 0xffff;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_LONG: {
+                int value[] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getInt(offset + i * 4);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_RATIONAL: {
+                Rational value[] = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = new Rational(mTiff.getInt(offset + i * 8),
+                            mTiff.getInt(offset + i * 8 + 4));
+                }
+                tag.setValue(value);
+            }
+                break;
+        }
+    }
+
+    private byte[] readBytes(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mTiff.limit()) {
+            return null;
+        }
+        byte[] buf = new byte[length];
+        ByteBuffer dup = mTiff.duplicate();
+        dup.position(offset);
+        dup.get(buf);
+        return buf;
+    }
+
+    /**
+     * Remembers the offsets of the IFDs and the thumbnail found in the tag,
+     * like {@link ExifParser} does.
+     */
+    private void checkOffsetOrImageTag(ExifTag tag) {
+        // Some invalid formattd image contains tag with 0 size.
+        if (tag.getComponentCount() == 0 || !tag.hasValue()) {
+            return;
+        }
+        short tid = tag.getTagId();
+        int ifd = tag.getIfd();
+        if (tid == TAG_EXIF_IFD && checkAllowed(ifd, ExifInterface.TAG_EXIF_IFD)) {
+            setIfdOffset(IfdId.TYPE_IFD_EXIF, tag.getValueAt(0));
+        } else if (tid == TAG_GPS_IFD && checkAllowed(ifd, ExifInterface.TAG_GPS_IFD)) {
+            setIfdOffset(IfdId.TYPE_IFD_GPS, tag.getValueAt(0));
+        } else if (tid == TAG_INTEROPERABILITY_IFD
+                && checkAllowed(ifd, ExifInterface.TAG_INTEROPERABILITY_IFD)) {
+            setIfdOffset(IfdId.TYPE_IFD_INTEROPERABILITY, tag.getValueAt(0));
+        } else if (tid == TAG_JPEG_INTERCHANGE_FORMAT
+                && checkAllowed(ifd, ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT)) {
+            mThumbnailOffset = (int) tag.getValueAt(0);
+        } else if (tid == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH
+                && checkAllowed(ifd, ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH)) {
+            mThumbnailSizeTag = tag;
+        } else if (tid == TAG_STRIP_OFFSETS && checkAllowed(ifd, ExifInterface.TAG_STRIP_OFFSETS)) {
+            mStripOffsetsTag = tag;
+        } else if (tid == TAG_STRIP_BYTE_COUNTS
+                && checkAllowed(ifd, ExifInterface.TAG_STRIP_BYTE_COUNTS)) {
+            mStripSizeTag = tag;
+        }
+    }
+
+    private static boolean isOffsetOrImageTag(short tid) {
+        return tid == TAG_EXIF_IFD || tid == TAG_GPS_IFD || tid == TAG_INTEROPERABILITY_IFD
+                || tid == TAG_JPEG_INTERCHANGE_FORMAT
+                || tid == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH
+                || tid == TAG_STRIP_OFFSETS || tid == TAG_STRIP_BYTE_COUNTS;
+    }
+
+    private void setIfdOffset(int ifdId, long offset) {
+        if (offset <= Integer.MAX_VALUE && mIfdOffsets[ifdId] == NOT_FOUND) {
+            mIfdOffsets[ifdId] = (int) offset;
+        }
+    }
+
+    private boolean checkAllowed(int ifd, int tagId) {
+        int info = mInterface.getTagInfo().get(tagId);
+        if (info == ExifInterface.DEFINITION_NULL) {
+            return false;
+        }
+        return ExifInterface.isIfdAllowed(info, ifd);
+    }
+}
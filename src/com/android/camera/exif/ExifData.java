@@ -26,9 +26,12 @@ import java.util.List;
 
 /**
  * This class stores the EXIF header in IFDs according to the JPEG
- * specification. It is the result produced by {@link ExifReader}.
+ * specification. It is the result produced by {@link ExifReader} or
+ * {@link ExifBufferReader}. In the latter case the IFDs and the thumbnail are
+ * read from the buffer when they are first accessed.
  *
  * @see ExifReader
+ * @see ExifBufferReader
  * @see IfdData
  */
 class ExifData {
@@ -47,11 +50,61 @@ class ExifData {
     private byte[] mThumbnail;
     private ArrayList<byte[]> mStripBytes = new ArrayList<byte[]>();
     private final ByteOrder mByteOrder;
+    // Reads the rest of the header on demand, null once everything is read.
+    private ExifBufferReader mReader;
 
     ExifData(ByteOrder order) {
         mByteOrder = order;
     }
 
+    /**
+     * Sets the reader that reads the IFDs and the thumbnail not added yet.
+     */
+    protected void setLazyReader(ExifBufferReader reader) {
+        mReader = reader;
+    }
+
+    private IfdData loadIfd(int ifdId) {
+        if (mReader != null) {
+            mReader.loadIfd(this, ifdId);
+            releaseReaderIfDone();
+        }
+        return mIfdDatas[ifdId];
+    }
+
+    private void loadThumbnail() {
+        if (mReader != null) {
+            mReader.loadThumbnail(this);
+            releaseReaderIfDone();
+        }
+    }
+
+    /**
+     * Reads and decodes everything not read yet, after that the source is not
+     * needed.
+     */
+    protected void loadAll() {
+        if (mReader != null) {
+            for (int i = 0; i < IfdId.TYPE_IFD_COUNT; i++) {
+                mReader.loadIfd(this, i);
+            }
+            mReader.loadThumbnail(this);
+            mReader = null;
+        }
+        // The IFDs may be read while their entries are still decoded lazily.
+        for (IfdData d : mIfdDatas) {
+            if (d != null) {
+                d.loadAll();
+            }
+        }
+    }
+
+    private void releaseReaderIfDone() {
+        if (mReader != null && mReader.isFullyLoaded()) {
+            mReader = null;
+        }
+    }
+
     /**
      * Gets the compressed thumbnail. Returns null if there is no compressed
      * thumbnail.
@@ -59,6 +112,7 @@ class ExifData {
      * @see #hasCompressedThumbnail()
      */
     protected byte[] getCompressedThumbnail() {
+        loadThumbnail();
         return mThumbnail;
     }
 
@@ -66,6 +120,9 @@ class ExifData {
      * Sets the compressed thumbnail.
      */
     protected void setCompressedThumbnail(byte[] thumbnail) {
+        if (mReader != null) {
+            mReader.dropThumbnail();
+        }
         mThumbnail = thumbnail;
     }
 
@@ -73,6 +130,7 @@ class ExifData {
      * Returns true it this header contains a compressed thumbnail.
      */
     protected boolean hasCompressedThumbnail() {
+        loadThumbnail();
         return mThumbnail != null;
     }
 
@@ -80,6 +138,9 @@ class ExifData {
      * Adds an uncompressed strip.
      */
     protected void setStripBytes(int index, byte[] strip) {
+        if (mReader != null) {
+            mReader.dropThumbnail();
+        }
         if (index < mStripBytes.size()) {
             mStripBytes.set(index, strip);
         } else {
@@ -94,6 +155,7 @@ class ExifData {
      * Gets the strip count.
      */
     protected int getStripCount() {
+        loadThumbnail();
         return mStripBytes.size();
     }
 
@@ -103,6 +165,7 @@ class ExifData {
      * @exceptions #IndexOutOfBoundException
      */
     protected byte[] getStrip(int index) {
+        loadThumbnail();
         return mStripBytes.get(index);
     }
 
@@ -110,6 +173,7 @@ class ExifData {
      * Returns true if this header contains uncompressed strip.
      */
     protected boolean hasUncompressedStrip() {
+        loadThumbnail();
         return mStripBytes.size() != 0;
     }
 
@@ -126,7 +190,7 @@ class ExifData {
      */
     protected IfdData getIfdData(int ifdId) {
         if (ExifTag.isValidIfd(ifdId)) {
-            return mIfdDatas[ifdId];
+            return loadIfd(ifdId);
         }
         return null;
     }
@@ -136,6 +200,9 @@ class ExifData {
      * replaced by the new data.
      */
     protected void addIfdData(IfdData data) {
+        if (mReader != null) {
+            mReader.dropIfd(data.getId());
+        }
         mIfdDatas[data.getId()] = data;
     }
 
@@ -144,7 +211,7 @@ class ExifData {
      * generates one if none exist.
      */
     protected IfdData getOrCreateIfdData(int ifdId) {
-        IfdData ifdData = mIfdDatas[ifdId];
+        IfdData ifdData = loadIfd(ifdId);
         if (ifdData == null) {
             ifdData = new IfdData(ifdId);
             mIfdDatas[ifdId] = ifdData;
@@ -157,7 +224,7 @@ class ExifData {
      * Otherwise returns null.
      */
     protected ExifTag getTag(short tag, int ifd) {
-        IfdData ifdData = mIfdDatas[ifd];
+        IfdData ifdData = loadIfd(ifd);
         return (ifdData == null) ? null : ifdData.getTag(tag);
     }
 
@@ -186,6 +253,9 @@ class ExifData {
     }
 
     protected void clearThumbnailAndStrips() {
+        if (mReader != null) {
+            mReader.dropThumbnail();
+        }
         mThumbnail = null;
         mStripBytes.clear();
     }
@@ -195,6 +265,10 @@ class ExifData {
      */
     protected void removeThumbnailData() {
         clearThumbnailAndStrips();
+        if (mReader != null) {
+            mReader.dropIfd(IfdId.TYPE_IFD_1);
+            releaseReaderIfDone();
+        }
         mIfdDatas[IfdId.TYPE_IFD_1] = null;
     }
 
@@ -202,7 +276,7 @@ class ExifData {
      * Removes the tag with a given TID and IFD.
      */
     protected void removeTag(short tagId, int ifdId) {
-        IfdData ifdData = mIfdDatas[ifdId];
+        IfdData ifdData = loadIfd(ifdId);
         if (ifdData == null) {
             return;
         }
@@ -214,7 +288,7 @@ class ExifData {
      * standard. Returns null if decoding failed.
      */
     protected String getUserComment() {
-        IfdData ifdData = mIfdDatas[IfdId.TYPE_IFD_0];
+        IfdData ifdData = loadIfd(IfdId.TYPE_IFD_0);
         if (ifdData == null) {
             return null;
         }
@@ -253,6 +327,7 @@ class ExifData {
      * are none.
      */
     protected List<ExifTag> getAllTags() {
+        loadAll();
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
         for (IfdData d : mIfdDatas) {
             if (d != null) {
@@ -275,7 +350,7 @@ class ExifData {
      * are none.
      */
     protected List<ExifTag> getAllTagsForIfd(int ifd) {
-        IfdData d = mIfdDatas[ifd];
+        IfdData d = loadIfd(ifd);
         if (d == null) {
             return null;
         }
@@ -298,6 +373,7 @@ class ExifData {
      * are none.
      */
     protected List<ExifTag> getAllTagsForTagId(short tag) {
+        loadAll();
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
         for (IfdData d : mIfdDatas) {
             if (d != null) {
@@ -323,6 +399,8 @@ class ExifData {
         }
         if (obj instanceof ExifData) {
             ExifData data = (ExifData) obj;
+            loadAll();
+            data.loadAll();
             if (data.mByteOrder != mByteOrder ||
                     data.mStripBytes.size() != mStripBytes.size() ||
                     !Arrays.equals(data.mThumbnail, mThumbnail)) {
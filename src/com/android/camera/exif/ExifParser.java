@@ -256,6 +256,75 @@ class ExifParser {
                 | OPTION_THUMBNAIL, iRef);
     }
 
+    /**
+     * Reads the given tags from the given InputStream. Only the IFDs that may
+     * contain them are parsed and parsing stops as soon as all of them are
+     * found, so the cost does not depend on the size of the rest of the EXIF
+     * header.
+     *
+     * @param tagIds the tags to read, as defined in {@link ExifInterface}.
+     * @return the tags in the order of tagIds, null for the tags not found.
+     * @exception IOException
+     * @exception ExifInvalidFormatException
+     */
+    protected static ExifTag[] findTags(InputStream inputStream, int[] tagIds,
+            ExifInterface iRef) throws IOException, ExifInvalidFormatException {
+        ExifTag[] found = new ExifTag[tagIds.length];
+        int options = 0;
+        for (int tagId : tagIds) {
+            options |= getOptionForIfd(ExifInterface.getTrueIfd(tagId));
+        }
+        ExifParser parser = new ExifParser(inputStream, options, iRef);
+        int remaining = tagIds.length;
+        int event = parser.next();
+        while (event != EVENT_END && remaining > 0) {
+            if (event == EVENT_NEW_TAG || event == EVENT_VALUE_OF_REGISTERED_TAG) {
+                ExifTag tag = parser.getTag();
+                int index = indexOfTag(tagIds, tag);
+                if (index >= 0 && found[index] == null) {
+                    if (event == EVENT_NEW_TAG && !tag.hasValue()) {
+                        parser.registerForTagValue(tag);
+                    } else {
+                        if (event == EVENT_VALUE_OF_REGISTERED_TAG
+                                && tag.getDataType() == ExifTag.TYPE_UNDEFINED) {
+                            parser.readFullTagValue(tag);
+                        }
+                        found[index] = tag;
+                        remaining--;
+                    }
+                }
+            }
+            event = parser.next();
+        }
+        return found;
+    }
+
+    private static int getOptionForIfd(int ifdType) {
+        switch (ifdType) {
+            case IfdId.TYPE_IFD_0:
+                return OPTION_IFD_0;
+            case IfdId.TYPE_IFD_1:
+                return OPTION_IFD_1;
+            case IfdId.TYPE_IFD_EXIF:
+                return OPTION_IFD_EXIF;
+            case IfdId.TYPE_IFD_GPS:
+                return OPTION_IFD_GPS;
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                return OPTION_IFD_INTEROPERABILITY;
+        }
+        return 0;
+    }
+
+    private static int indexOfTag(int[] tagIds, ExifTag tag) {
+        for (int i = 0; i < tagIds.length; i++) {
+            if (ExifInterface.getTrueTagKey(tagIds[i]) == tag.getTagId()
+                    && ExifInterface.getTrueIfd(tagIds[i]) == tag.getIfd()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Moves the parser forward and returns the next parsing event
      *
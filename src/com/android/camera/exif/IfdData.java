@@ -16,19 +16,31 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class stores all the tags in an IFD.
+ * <p>
+ * The tags are kept in arrays sorted by tag id. Entries added by
+ * {@link ExifBufferReader} only record where they are in the source buffer
+ * and are decoded into {@link ExifTag}s when they are first accessed.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
+    private static final char[] EMPTY_IDS = new char[0];
+    private static final ExifTag[] EMPTY_TAGS = new ExifTag[0];
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    // Tag ids as unsigned values, so the tags sort in the order of the spec.
+    private char[] mTagIds = EMPTY_IDS;
+    // The decoded tags, null for the entries that are not decoded yet.
+    private ExifTag[] mTags = EMPTY_TAGS;
+    // The positions of the entries in the reader's buffer, null if none.
+    private int[] mEntryPositions;
+    private ExifBufferReader mReader;
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -55,7 +67,11 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        ExifTag[] tags = new ExifTag[mTagCount];
+        for (int i = 0; i < mTagCount; i++) {
+            tags[i] = decode(i);
+        }
+        return tags;
     }
 
     /**
@@ -76,7 +92,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return (index < 0) ? null : decode(index);
     }
 
     /**
@@ -84,25 +101,62 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag old = decode(index);
+            mTags[index] = tag;
+            return old;
+        }
+        insert(-index - 1, tag.getTagId());
+        mTags[-index - 1] = tag;
+        return null;
+    }
+
+    /**
+     * Adds or replaces the entry of a tag that the reader decodes on demand.
+     * The reader has checked that it can be decoded.
+     */
+    protected void setEntry(short tagId, int position, ExifBufferReader reader) {
+        int index = indexOf(tagId);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, tagId);
+        }
+        if (mEntryPositions == null) {
+            mEntryPositions = new int[mTagIds.length];
+        }
+        mReader = reader;
+        mTags[index] = null;
+        mEntryPositions[index] = position;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        int moved = mTagCount - index - 1;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, moved);
+        System.arraycopy(mTags, index + 1, mTags, index, moved);
+        if (mEntryPositions != null) {
+            System.arraycopy(mEntryPositions, index + 1, mEntryPositions, index, moved);
+        }
+        mTagCount--;
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
     }
 
     /**
@@ -119,6 +173,53 @@ class IfdData {
         return mOffsetToNextIfd;
     }
 
+    private int indexOf(short tagId) {
+        return Arrays.binarySearch(mTagIds, 0, mTagCount, (char) tagId);
+    }
+
+    private void insert(int index, short tagId) {
+        if (mTagCount == mTagIds.length) {
+            int capacity = Math.max(4, mTagCount * 2);
+            mTagIds = Arrays.copyOf(mTagIds, capacity);
+            mTags = Arrays.copyOf(mTags, capacity);
+            if (mEntryPositions != null) {
+                mEntryPositions = Arrays.copyOf(mEntryPositions, capacity);
+            }
+        }
+        int moved = mTagCount - index;
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, moved);
+        System.arraycopy(mTags, index, mTags, index + 1, moved);
+        if (mEntryPositions != null) {
+            System.arraycopy(mEntryPositions, index, mEntryPositions, index + 1, moved);
+        }
+        mTagIds[index] = (char) tagId;
+        mTags[index] = null;
+        mTagCount++;
+    }
+
+    /**
+     * Decodes every entry not decoded yet, after that the reader's buffer is
+     * not needed.
+     */
+    protected void loadAll() {
+        if (mReader != null) {
+            for (int i = 0; i < mTagCount; i++) {
+                decode(i);
+            }
+            mReader = null;
+            mEntryPositions = null;
+        }
+    }
+
+    private ExifTag decode(int index) {
+        ExifTag tag = mTags[index];
+        if (tag == null) {
+            tag = mReader.readTag(mIfdId, mEntryPositions[index]);
+            mTags[index] = tag;
+        }
+        return tag;
+    }
+
     /**
      * Returns true if all tags in this two IFDs are equal. Note that tags of
      * IFDs offset or thumbnail offset will be ignored.
@@ -139,7 +240,7 @@ class IfdData {
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
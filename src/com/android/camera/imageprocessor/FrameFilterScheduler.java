@@ -0,0 +1,274 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Feeds preview frames to one frame filter according to its
+ * FrameSchedulePolicy and keeps latency and drop statistics.
+ * Frame listeners get a copy of the frame through offer() and are run on
+ * the listening thread. Filters drawing into the preview are run
+ * synchronously through runInline().
+ */
+public class FrameFilterScheduler implements Runnable {
+    private final ImageFilter mFilter;
+    private final int mFilterId;
+    private FrameSchedulePolicy mPolicy;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Frame> mQueuedFrames = new ArrayDeque<Frame>();
+    private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<Frame>();
+    //Frames accepted and not finished yet, queued or being processed
+    private int mInFlight;
+    private long mLastAcceptedNs;
+
+    private long mOfferedCount;
+    private long mProcessedCount;
+    private long mRateDropCount;
+    private long mBusyDropCount;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+
+    private static class Frame {
+        ByteBuffer bY;
+        ByteBuffer bVU;
+        int width;
+        int height;
+        int stride;
+        long acceptedNs;
+
+        void copyFrom(ByteBuffer y, ByteBuffer vu) {
+            if (bY == null || bY.capacity() != y.remaining()) {
+                bY = ByteBuffer.allocateDirect(y.remaining());
+            }
+            if (bVU == null || bVU.capacity() != vu.remaining()) {
+                bVU = ByteBuffer.allocateDirect(vu.remaining());
+            }
+            bY.clear();
+            bVU.clear();
+            bY.put(y);
+            bVU.put(vu);
+        }
+    }
+
+    public static class Stats {
+        public final String filterName;
+        public final long offered;
+        public final long processed;
+        public final long rateDropped;
+        public final long busyDropped;
+        public final long avgLatencyUs;
+        public final long maxLatencyUs;
+
+        Stats(String filterName, long offered, long processed, long rateDropped,
+              long busyDropped, long totalLatencyNs, long maxLatencyNs) {
+            this.filterName = filterName;
+            this.offered = offered;
+            this.processed = processed;
+            this.rateDropped = rateDropped;
+            this.busyDropped = busyDropped;
+            this.avgLatencyUs = processed == 0 ? 0 : totalLatencyNs / processed / 1000;
+            this.maxLatencyUs = maxLatencyNs / 1000;
+        }
+
+        public float getDropRate() {
+            if (offered == 0) {
+                return 0f;
+            }
+            return (float) (rateDropped + busyDropped) / offered;
+        }
+
+        @Override
+        public String toString() {
+            return filterName + " offered=" + offered + " processed=" + processed
+                    + " rateDropped=" + rateDropped + " busyDropped=" + busyDropped
+                    + " avgLatency=" + avgLatencyUs + "us maxLatency=" + maxLatencyUs + "us";
+        }
+    }
+
+    public FrameFilterScheduler(ImageFilter filter, int filterId, FrameSchedulePolicy policy) {
+        mFilter = filter;
+        mFilterId = filterId;
+        mPolicy = policy;
+    }
+
+    public ImageFilter getFilter() {
+        return mFilter;
+    }
+
+    public int getFilterId() {
+        return mFilterId;
+    }
+
+    public void setPolicy(FrameSchedulePolicy policy) {
+        synchronized (mLock) {
+            mPolicy = policy;
+        }
+    }
+
+    public FrameSchedulePolicy getPolicy() {
+        synchronized (mLock) {
+            return mPolicy;
+        }
+    }
+
+    /*
+     * Copies the frame for the listening thread if the policy accepts it.
+     * Returns true when the caller has to post this scheduler to run it.
+     */
+    public boolean offer(ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        long now = System.nanoTime();
+        Frame frame;
+        synchronized (mLock) {
+            if (!acceptLocked(now)) {
+                return false;
+            }
+            if (mInFlight >= mPolicy.getMaxInFlight()) {
+                if (mPolicy.getDropMode() == FrameSchedulePolicy.DropMode.DROP_OLDEST
+                        && !mQueuedFrames.isEmpty()) {
+                    //The replaced frame never reaches the filter
+                    frame = mQueuedFrames.pollFirst();
+                    mInFlight--;
+                    mBusyDropCount++;
+                } else {
+                    mBusyDropCount++;
+                    return false;
+                }
+            } else {
+                frame = mFreeFrames.poll();
+                if (frame == null) {
+                    frame = new Frame();
+                }
+            }
+            mInFlight++;
+            mLastAcceptedNs = now;
+        }
+        frame.copyFrom(bY, bVU);
+        frame.width = width;
+        frame.height = height;
+        frame.stride = stride;
+        frame.acceptedNs = now;
+        synchronized (mLock) {
+            mQueuedFrames.addLast(frame);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        Frame frame;
+        synchronized (mLock) {
+            frame = mQueuedFrames.pollFirst();
+        }
+        if (frame == null) {
+            return;
+        }
+        try {
+            mFilter.init(frame.width, frame.height, frame.stride, frame.stride);
+            mFilter.addImage(frame.bY, frame.bVU, 0, new Boolean(true));
+        } finally {
+            synchronized (mLock) {
+                mInFlight--;
+                recordLatencyLocked(System.nanoTime() - frame.acceptedNs);
+                mFreeFrames.add(frame);
+            }
+        }
+    }
+
+    /*
+     * Runs the filter on the caller's thread if the rate allows it.
+     * Returns false when the frame was skipped.
+     */
+    public boolean runInline(ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        long now = System.nanoTime();
+        synchronized (mLock) {
+            if (!acceptLocked(now)) {
+                return false;
+            }
+            mLastAcceptedNs = now;
+        }
+        mFilter.init(width, height, stride, stride);
+        mFilter.addImage(bY, bVU, 0, new Boolean(true));
+        synchronized (mLock) {
+            recordLatencyLocked(System.nanoTime() - now);
+        }
+        return true;
+    }
+
+    /* Drops the queued frames. The listening thread must be stopped. */
+    public void flush() {
+        synchronized (mLock) {
+            while (!mQueuedFrames.isEmpty()) {
+                mFreeFrames.add(mQueuedFrames.pollFirst());
+            }
+            mInFlight = 0;
+            mLastAcceptedNs = 0;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mFilter.getStringName(), mOfferedCount, mProcessedCount,
+                    mRateDropCount, mBusyDropCount, mTotalLatencyNs, mMaxLatencyNs);
+        }
+    }
+
+    public void resetStats() {
+        synchronized (mLock) {
+            mOfferedCount = 0;
+            mProcessedCount = 0;
+            mRateDropCount = 0;
+            mBusyDropCount = 0;
+            mTotalLatencyNs = 0;
+            mMaxLatencyNs = 0;
+        }
+    }
+
+    private boolean acceptLocked(long now) {
+        mOfferedCount++;
+        if (mLastAcceptedNs != 0 && now - mLastAcceptedNs < mPolicy.getMinIntervalNs()) {
+            mRateDropCount++;
+            return false;
+        }
+        return true;
+    }
+
+    private void recordLatencyLocked(long latencyNs) {
+        mProcessedCount++;
+        mTotalLatencyNs += latencyNs;
+        if (latencyNs > mMaxLatencyNs) {
+            mMaxLatencyNs = latencyNs;
+        }
+    }
+}
@@ -42,6 +42,7 @@ import android.renderscript.RenderScript;
 import android.renderscript.Type;
 import android.util.Log;
 import android.util.Size;
+import android.util.SparseArray;
 import android.view.Surface;
 import android.widget.Toast;
 
@@ -51,18 +52,24 @@ import com.android.camera.imageprocessor.filter.BeautificationFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
 import com.android.camera.ui.RotateTextToast;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
+    private static final String TAG = "FrameProcessor";
 
     private ImageReader mInputImageReader;
+    //NV21 frame, written through mInputBuffer which maps the allocation memory.
     private Allocation mInputAllocation;
-    private Allocation mProcessAllocation;
+    private ByteBuffer mInputBuffer;
+    private int mInputStride;
+    //One cell per 2x2 block, only used as the launch range of the kernel.
+    private Allocation mBlockAllocation;
     private Allocation mOutputAllocation;
     private Allocation mVideoOutputAllocation;
 
@@ -74,16 +81,18 @@ public class FrameProcessor {
     private Handler mListeningHandler;
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
     private RenderScript mRs;
     private Activity mActivity;
-    ScriptC_YuvToRgb mRsYuvToRGB;
-    ScriptC_rotator mRsRotator;
+    ScriptC_YuvRotateToRgb mRsRotateToRgb;
     private Size mSize;
     private Object mAllocationLock = new Object();
     private boolean mIsAllocationEverUsed;
     private ArrayList<ImageFilter> mPreviewFilters;
     private ArrayList<ImageFilter> mFinalFilters;
+    //Schedulers of mPreviewFilters, in the same order
+    private ArrayList<FrameFilterScheduler> mSchedulers;
+    //Policies set by the module, kept across onOpen()
+    private SparseArray<FrameSchedulePolicy> mPolicies = new SparseArray<FrameSchedulePolicy>();
     private Surface mSurfaceAsItIs;
     private Surface mVideoSurfaceAsItIs;
     private boolean mIsActive = false;
@@ -98,6 +107,7 @@ public class FrameProcessor {
         mModule = module;
         mPreviewFilters = new ArrayList<ImageFilter>();
         mFinalFilters = new ArrayList<ImageFilter>();
+        mSchedulers = new ArrayList<FrameFilterScheduler>();
     }
 
     public void init(Size previewDim) {
@@ -105,8 +115,7 @@ public class FrameProcessor {
         mSize = previewDim;
         synchronized (mAllocationLock) {
             mRs = RenderScript.create(mActivity);
-            mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
-            mRsRotator = new ScriptC_rotator(mRs);
+            mRsRotateToRgb = new ScriptC_YuvRotateToRgb(mRs);
             mInputImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888, 8);
 
             Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
@@ -133,27 +142,33 @@ public class FrameProcessor {
                 mListeningHandler = new Handler(mListeningThread.getLooper());
             }
 
-            mListeningTask = new ListeningTask();
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
             mIsAllocationEverUsed = false;
         }
     }
 
-    private void createAllocation(int width, int height, int stridePad) {
-        Type.Builder yuvTypeBuilder = new Type.Builder(mRs, Element.YUV(mRs));
-        yuvTypeBuilder.setX(width);
-        yuvTypeBuilder.setY(height);
-        yuvTypeBuilder.setYuvFormat(ImageFormat.NV21);
-        mInputAllocation = Allocation.createTyped(mRs, yuvTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+    private void createAllocation(int width, int height, int stride) {
+        if (mInputAllocation != null) {
+            mInputAllocation.destroy();
+        }
+        if (mBlockAllocation != null) {
+            mBlockAllocation.destroy();
+        }
         Type.Builder nv21TypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
-        nv21TypeBuilder.setX(width * height * 3 / 2);
-        mProcessAllocation = Allocation.createTyped(mRs, nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        mRsRotator.set_gIn(mInputAllocation);
-        mRsRotator.set_gOut(mProcessAllocation);
-        mRsRotator.set_width(width);
-        mRsRotator.set_height(height);
-        mRsRotator.set_pad(stridePad);
+        nv21TypeBuilder.setX(stride * height * 3 / 2);
+        mInputAllocation = Allocation.createTyped(mRs, nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        mInputBuffer = mInputAllocation.getByteBuffer();
+        mInputStride = stride;
+        Type.Builder blockTypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
+        blockTypeBuilder.setX(width / 2);
+        blockTypeBuilder.setY(height / 2);
+        mBlockAllocation = Allocation.createTyped(mRs, blockTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        mRsRotateToRgb.set_gIn(mInputAllocation);
+        mRsRotateToRgb.set_gOut(mOutputAllocation);
+        mRsRotateToRgb.set_srcWidth(width);
+        mRsRotateToRgb.set_srcHeight(height);
+        mRsRotateToRgb.set_stride(stride);
         int degree = 90;
         if(mModule.getMainCameraCharacteristics() != null) {
             degree = mModule.getMainCameraCharacteristics().
@@ -162,10 +177,7 @@ public class FrameProcessor {
                 degree = Math.abs(degree - 90);
             }
         }
-        mRsRotator.set_degree(degree);
-        mRsYuvToRGB.set_gIn(mProcessAllocation);
-        mRsYuvToRGB.set_width(height);
-        mRsYuvToRGB.set_height(width);
+        mRsRotateToRgb.set_degree(degree);
     }
 
     public ArrayList<ImageFilter> getFrameFilters() {
@@ -185,6 +197,7 @@ public class FrameProcessor {
         }
         mPreviewFilters = new ArrayList<ImageFilter>();
         mFinalFilters = new ArrayList<ImageFilter>();
+        mSchedulers = new ArrayList<FrameFilterScheduler>();
     }
 
     public void onOpen(ArrayList<Integer> filterIds) {
@@ -206,6 +219,11 @@ public class FrameProcessor {
 
         if (filter != null && filter.isSupported()) {
             mPreviewFilters.add(filter);
+            FrameSchedulePolicy policy = mPolicies.get(filterId);
+            if (policy == null) {
+                policy = getDefaultPolicy(filterId);
+            }
+            mSchedulers.add(new FrameFilterScheduler(filter, filterId, policy));
             if (!filter.isFrameListener()) {
                 mFinalFilters.add(filter);
             }
@@ -213,6 +231,38 @@ public class FrameProcessor {
 
     }
 
+    private static FrameSchedulePolicy getDefaultPolicy(int filterId) {
+        if (filterId == LISTENER_TRACKING_FOCUS) {
+            //One frame tracked, the latest one waiting
+            return new FrameSchedulePolicy(PersistUtil.getTrackingFocusTargetHz(), 2,
+                    FrameSchedulePolicy.DropMode.DROP_OLDEST);
+        }
+        return new FrameSchedulePolicy(PersistUtil.getMakeupTargetHz(), 1,
+                FrameSchedulePolicy.DropMode.DROP_NEWEST);
+    }
+
+    /*
+     * Overrides the scheduling of a preview filter, e.g. FILTER_MAKEUP or
+     * LISTENER_TRACKING_FOCUS. Preview filters run on the processing thread
+     * and only use the rate of the policy; a skipped frame is not shown.
+     */
+    public void setSchedulePolicy(int filterId, FrameSchedulePolicy policy) {
+        mPolicies.put(filterId, policy);
+        for (FrameFilterScheduler scheduler : mSchedulers) {
+            if (scheduler.getFilterId() == filterId) {
+                scheduler.setPolicy(policy);
+            }
+        }
+    }
+
+    public List<FrameFilterScheduler.Stats> getFilterStats() {
+        List<FrameFilterScheduler.Stats> stats = new ArrayList<FrameFilterScheduler.Stats>();
+        for (FrameFilterScheduler scheduler : mSchedulers) {
+            stats.add(scheduler.getStats());
+        }
+        return stats;
+    }
+
     public void onClose() {
         mIsActive = false;
         synchronized (mAllocationLock) {
@@ -220,12 +270,12 @@ public class FrameProcessor {
                 if (mInputAllocation != null) {
                     mInputAllocation.destroy();
                 }
+                if (mBlockAllocation != null) {
+                    mBlockAllocation.destroy();
+                }
                 if (mOutputAllocation != null) {
                     mOutputAllocation.destroy();
                 }
-                if (mProcessAllocation != null) {
-                    mProcessAllocation.destroy();
-                }
                 if (mVideoOutputAllocation != null) {
                     mVideoOutputAllocation.destroy();
                 }
@@ -234,9 +284,10 @@ public class FrameProcessor {
                 mRs.destroy();
             }
             mRs = null;
-            mProcessAllocation = null;
             mOutputAllocation = null;
             mInputAllocation = null;
+            mInputBuffer = null;
+            mBlockAllocation = null;
             mVideoOutputAllocation = null;
         }
         if (mProcessingThread != null) {
@@ -266,6 +317,13 @@ public class FrameProcessor {
             } catch (InterruptedException e) {
             }
         }
+        if (mTask != null) {
+            mTask.closePendingImage();
+        }
+        for (FrameFilterScheduler scheduler : mSchedulers) {
+            Log.d(TAG, scheduler.getStats().toString());
+            scheduler.flush();
+        }
         for (ImageFilter filter : mPreviewFilters) {
             filter.deinit();
         }
@@ -344,138 +402,97 @@ public class FrameProcessor {
     }
 
     class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
-        byte[] yvuBytes = null;
-        int ySize;
-        int stride;
-        int height;
-        int width;
+        //The frame waiting for the outing thread. A newer frame replaces it.
+        private final AtomicReference<Image> mPendingImage = new AtomicReference<Image>();
 
         public ProcessingTask() {
         }
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
-                    return;
-                }
-                try {
-                    Image image = reader.acquireLatestImage();
-                    if (image == null) {
-                        return;
-                    }
-                    if (!mIsActive) {
-                        image.close();
-                        return;
-                    }
-                    mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            filter.addImage(bY, bVU, 0, new Boolean(true));
-                            needToFeedSurface = true;
-                        }
-                        bY.rewind();
-                        bVU.rewind();
-                    }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
+            Image image;
+            try {
+                image = reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            if (!mIsActive) {
+                image.close();
+                return;
+            }
+            ByteBuffer bY = image.getPlanes()[0].getBuffer();
+            ByteBuffer bVU = image.getPlanes()[2].getBuffer();
+            int stride = image.getPlanes()[0].getRowStride();
+            boolean needToFeedSurface = false;
+            //Start processing yvu buf
+            for (FrameFilterScheduler scheduler : mSchedulers) {
+                if (scheduler.getFilter().isFrameListener()) {
+                    if (scheduler.offer(bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
+                        mListeningHandler.post(scheduler);
                     }
-                    image.close();
-                } catch (IllegalStateException e) {
+                } else if (scheduler.runInline(bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
+                    needToFeedSurface = true;
                 }
+                bY.rewind();
+                bVU.rewind();
             }
-        }
-
-        @Override
-        public void run() {
-            synchronized (mAllocationLock) {
-                if (!mIsActive) {
-                    return;
-                }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
-                }
-                mInputAllocation.copyFrom(yvuBytes);
-                mRsRotator.forEach_rotate90andMerge(mInputAllocation);
-                mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
-                mOutputAllocation.ioSend();
-                if (mVideoOutputAllocation != null) {
-                    mVideoOutputAllocation.copyFrom(mOutputAllocation);
-                    mVideoOutputAllocation.ioSend();
+            //End processing yvu buf
+            if (needToFeedSurface) {
+                //The planes go to the outing thread as they are, without a copy.
+                Image dropped = mPendingImage.getAndSet(image);
+                if (dropped != null) {
+                    dropped.close();
+                } else {
+                    mOutingHandler.post(this);
                 }
+            } else {
+                image.close();
             }
         }
-    }
-
-    class ListeningTask implements Runnable {
-
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
-            if (!mIsActive) {
-                return false;
-            }
-            if (!mMutureLock.tryAcquire()) {
-                return false;
-            }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
+        public void closePendingImage() {
+            Image image = mPendingImage.getAndSet(null);
+            if (image != null) {
+                image.close();
             }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
-            return true;
         }
 
         @Override
         public void run() {
+            Image image = mPendingImage.getAndSet(null);
+            if (image == null) {
+                return;
+            }
             try {
-                if (!mIsActive) {
-                    return;
+                synchronized (mAllocationLock) {
+                    if (!mIsActive || mOutputAllocation == null) {
+                        return;
+                    }
+                    mIsAllocationEverUsed = true;
+                    int stride = image.getPlanes()[0].getRowStride();
+                    int height = mSize.getHeight();
+                    if (mInputAllocation == null || stride != mInputStride) {
+                        createAllocation(mSize.getWidth(), height, stride);
+                    }
+                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
+                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
+                    mInputBuffer.clear();
+                    mInputBuffer.put(bY);
+                    mInputBuffer.position(stride * height);
+                    mInputBuffer.put(bVU);
+                    mRsRotateToRgb.forEach_nv21RotateToRgb(mBlockAllocation);
+                    mOutputAllocation.ioSend();
+                    if (mVideoOutputAllocation != null) {
+                        mVideoOutputAllocation.copyFrom(mOutputAllocation);
+                        mVideoOutputAllocation.ioSend();
+                    }
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
-                mMutureLock.release();
-            } catch (InterruptedException e) {
+            } finally {
+                image.close();
             }
         }
     }
 }
-
@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+/*
+ * How often a preview frame filter may run and what happens to frames
+ * arriving while it is still busy with earlier ones.
+ */
+public class FrameSchedulePolicy {
+    public enum DropMode {
+        //Replace the oldest frame that has not started yet
+        DROP_OLDEST,
+        //Reject the incoming frame
+        DROP_NEWEST
+    }
+
+    public static final int UNLIMITED_HZ = 0;
+
+    private final int mTargetHz;
+    private final int mMaxInFlight;
+    private final DropMode mDropMode;
+
+    /*
+     * targetHz caps the rate at which frames are accepted, UNLIMITED_HZ
+     * accepts every frame. maxInFlight counts the frames accepted but not
+     * finished, including the one being processed.
+     */
+    public FrameSchedulePolicy(int targetHz, int maxInFlight, DropMode dropMode) {
+        if (targetHz < 0 || maxInFlight < 1 || dropMode == null) {
+            throw new IllegalArgumentException("Invalid policy " + targetHz + "Hz "
+                    + maxInFlight + " in flight " + dropMode);
+        }
+        mTargetHz = targetHz;
+        mMaxInFlight = maxInFlight;
+        mDropMode = dropMode;
+    }
+
+    public int getTargetHz() {
+        return mTargetHz;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public DropMode getDropMode() {
+        return mDropMode;
+    }
+
+    long getMinIntervalNs() {
+        if (mTargetHz == UNLIMITED_HZ) {
+            return 0;
+        }
+        //Leave some slack so that preview frame jitter does not make
+        //a frame arrive just too early and halve the rate.
+        long interval = 1000000000L / mTargetHz;
+        return interval - interval / 8;
+    }
+
+    @Override
+    public String toString() {
+        return (mTargetHz == UNLIMITED_HZ ? "unlimited" : mTargetHz + "Hz")
+                + " maxInFlight=" + mMaxInFlight + " " + mDropMode;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.camera.util.PersistUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Size-keyed pool of buffers used for full size YUV frames.
+ * Buffers are checked out with acquire() and have to be handed back
+ * with release() once the pixels are no longer needed. acquire() hands out
+ * direct buffers; acquireHeap() hands out heap buffers whose array() starts
+ * at offset 0, for consumers like YuvImage that take a bare byte[].
+ */
+public class ImageBufferPool {
+    private static final String TAG = "ImageBufferPool";
+    private static final boolean DEBUG = false;
+    private static final long POOL_LIMIT =
+            PersistUtil.getImageBufferPoolLimit() * 1024L * 1024L;
+
+    private static ImageBufferPool sInstance;
+
+    private final SparseArray<ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new SparseArray<ArrayDeque<ByteBuffer>>();
+    private final SparseArray<ArrayDeque<ByteBuffer>> mFreeHeapBuffers =
+            new SparseArray<ArrayDeque<ByteBuffer>>();
+    private long mPooledBytes = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    public static synchronized ImageBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageBufferPool();
+        }
+        return sInstance;
+    }
+
+    private ImageBufferPool() {
+    }
+
+    public synchronized ByteBuffer acquire(int size) {
+        return acquire(mFreeBuffers, size, true);
+    }
+
+    public synchronized ByteBuffer acquireHeap(int size) {
+        return acquire(mFreeHeapBuffers, size, false);
+    }
+
+    private ByteBuffer acquire(SparseArray<ArrayDeque<ByteBuffer>> freeBuffers, int size,
+            boolean direct) {
+        ArrayDeque<ByteBuffer> queue = freeBuffers.get(size);
+        ByteBuffer buf = (queue == null) ? null : queue.poll();
+        if (buf != null) {
+            mHitCount++;
+            mPooledBytes -= size;
+            buf.clear();
+        } else {
+            mMissCount++;
+            buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        if (DEBUG) Log.d(TAG, "acquire " + size + " " + this);
+        return buf;
+    }
+
+    /* Takes back a buffer from acquire() or acquireHeap(). */
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        SparseArray<ArrayDeque<ByteBuffer>> freeBuffers;
+        if (buf.isDirect()) {
+            freeBuffers = mFreeBuffers;
+        } else if (buf.hasArray() && buf.arrayOffset() == 0) {
+            freeBuffers = mFreeHeapBuffers;
+        } else {
+            return;
+        }
+        int size = buf.capacity();
+        if (mPooledBytes + size > POOL_LIMIT) {
+            if (DEBUG) Log.d(TAG, "drop " + size + " " + this);
+            return;
+        }
+        ArrayDeque<ByteBuffer> queue = freeBuffers.get(size);
+        if (queue == null) {
+            queue = new ArrayDeque<ByteBuffer>();
+            freeBuffers.put(size, queue);
+        }
+        for (ByteBuffer b : queue) {
+            if (b == buf) {
+                Log.w(TAG, "Buffer is released twice");
+                return;
+            }
+        }
+        queue.add(buf);
+        mPooledBytes += size;
+    }
+
+    /* Drops all the pooled buffers. Counters are kept. */
+    public synchronized void trim() {
+        mFreeBuffers.clear();
+        mFreeHeapBuffers.clear();
+        mPooledBytes = 0;
+    }
+
+    /* Returns true if a released buffer of this size can be kept for reuse. */
+    public boolean canHold(int size) {
+        return size <= POOL_LIMIT;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized void resetCounters() {
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hit: " + mHitCount + " miss: " + mMissCount + " pooled: " + mPooledBytes;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Encodes NV21 result images into JPEG. The output buffer is sized up front
+ * and kept between captures, and the EXIF header is written while the
+ * encoder streams the JPEG out, so the JPEG is not parsed and copied again
+ * afterwards. An instance must not be shared between threads.
+ */
+public class JpegEncoder {
+    private static final String TAG = "JpegEncoder";
+    //Compressed size of a high quality JPEG stays below this per pixel.
+    private static final float MAX_BYTES_PER_PIXEL = 0.75f;
+    private static final int EXIF_RESERVED_SIZE = 64 * 1024;
+    //Longer side of the EXIF thumbnail, the HAL thumbnails are similar.
+    private static final int THUMBNAIL_MAX_SIZE = 320;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private JpegOutputStream mOutStream;
+
+    /*
+     * Returns the JPEG with the given exif header, or null on failure.
+     * exif can be null if no EXIF header is needed. A thumbnail is added to
+     * exif if it has none.
+     */
+    public byte[] encode(ImageFilter.ResultImage image, int quality, ExifInterface exif) {
+        Rect roi = image.outRoi;
+        int estimatedSize = (int) (roi.width() * roi.height() * MAX_BYTES_PER_PIXEL)
+                + EXIF_RESERVED_SIZE;
+        if (mOutStream == null || mOutStream.capacity() < estimatedSize) {
+            mOutStream = new JpegOutputStream(estimatedSize);
+        }
+        mOutStream.reset();
+
+        if (exif != null && exif.getThumbnail() == null) {
+            byte[] thumbnail = createThumbnail(image.outBuffer.array(), image.width,
+                    image.height, image.stride, image.stride, roi);
+            if (thumbnail != null) {
+                exif.setCompressedThumbnail(thumbnail);
+            }
+        }
+        YuvImage im = new YuvImage(image.outBuffer.array(), ImageFormat.NV21,
+                image.width, image.height, new int[]{image.stride, image.stride});
+        OutputStream out = (exif == null) ? mOutStream : exif.getExifWriterStream(mOutStream);
+        try {
+            if (!im.compressToJpeg(roi, quality, out)) {
+                Log.e(TAG, "Fail to compress the image");
+                return null;
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+            return null;
+        }
+        return mOutStream.toByteArray();
+    }
+
+    /*
+     * Returns a small JPEG of the roi of an NV21 image for the EXIF
+     * thumbnail, or null on failure. The VU plane starts at
+     * strideY * height as for YuvImage. The image is downscaled before it is
+     * encoded, luma with a 2x2 box filter and chroma by point sampling.
+     */
+    public static byte[] createThumbnail(byte[] nv21, int width, int height,
+            int strideY, int strideVU, Rect roi) {
+        int scale = Math.max(1, (Math.max(roi.width(), roi.height()) + THUMBNAIL_MAX_SIZE - 1)
+                / THUMBNAIL_MAX_SIZE);
+        int tw = (roi.width() / scale) & ~1;
+        int th = (roi.height() / scale) & ~1;
+        if (tw == 0 || th == 0) {
+            return null;
+        }
+        byte[] out = new byte[tw * th * 3 / 2];
+        int half = scale > 1 ? scale / 2 : 0;
+        for (int y = 0; y < th; y++) {
+            int row0 = (roi.top + y * scale) * strideY + roi.left;
+            int row1 = row0 + half * strideY;
+            int o = y * tw;
+            for (int x = 0; x < tw; x++) {
+                int c0 = row0 + x * scale;
+                int c1 = row1 + x * scale;
+                out[o + x] = (byte) (((nv21[c0] & 0xff) + (nv21[c0 + half] & 0xff)
+                        + (nv21[c1] & 0xff) + (nv21[c1 + half] & 0xff) + 2) >> 2);
+            }
+        }
+        int vuOffset = strideY * height;
+        int outVu = tw * th;
+        for (int y = 0; y < th / 2; y++) {
+            int row = vuOffset + ((roi.top + y * 2 * scale) / 2) * strideVU;
+            int o = outVu + y * tw;
+            for (int x = 0; x < tw / 2; x++) {
+                int c = row + ((roi.left + x * 2 * scale) & ~1);
+                out[o + x * 2] = nv21[c];
+                out[o + x * 2 + 1] = nv21[c + 1];
+            }
+        }
+        YuvImage im = new YuvImage(out, ImageFormat.NV21, tw, th, null);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(tw * th / 2);
+        if (!im.compressToJpeg(new Rect(0, 0, tw, th), THUMBNAIL_QUALITY, jpeg)) {
+            Log.e(TAG, "Fail to compress the thumbnail");
+            return null;
+        }
+        return jpeg.toByteArray();
+    }
+
+    private static class JpegOutputStream extends ByteArrayOutputStream {
+        public JpegOutputStream(int size) {
+            super(size);
+        }
+
+        public int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -30,9 +30,7 @@ package com.android.camera.imageprocessor;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
@@ -64,14 +62,19 @@ import com.android.camera.imageprocessor.filter.StillmoreFilter;
 import com.android.camera.imageprocessor.filter.UbifocusFilter;
 import com.android.camera.ui.RotateTextToast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
@@ -91,27 +94,35 @@ public class PostProcessor{
 
     //BestPicture requires 10 which is the biggest among filters
     public static final int MAX_REQUIRED_IMAGE_NUM = 11;
-    private int mCurrentNumImage = 0;
+    //The number of captures which can be processed and encoded at the same time.
+    private static final int MAX_IN_FLIGHT_CAPTURES = 2;
+    private static final long SAVE_CAPACITY_TIMEOUT_MS = 3000;
+    private static final long PROCESS_TIMEOUT_MS = 4000;
+    private static final int DEFAULT_JPEG_QUALITY = 85;
     private ImageFilter mFilter;
     private int mFilterIndex;
-    private HandlerThread mHandlerThread;
-    private ProcessorHandler mHandler;
+    private boolean mIsFilterInitialized = false;
+    private int mFilterWidth;
+    private int mFilterHeight;
+    private int mFilterStride;
+    private ThreadPoolExecutor mProcessExecutor;
     private CameraActivity mActivity;
-    private int mWidth;
-    private int mHeight;
-    private int mStride;
+    //Guards mFilter and its native state.
     private Object lock = new Object();
-    private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
-    private Image[] mImages;
+    private final Object mFrameFilterLock = new Object();
+    //Guards the capture context which is collecting images.
+    private final Object mContextLock = new Object();
+    private CaptureContext mCollectingContext;
+    private volatile boolean mIsProcessorActive = false;
+    private final AtomicInteger mInFlightCount = new AtomicInteger(0);
+    private final AtomicInteger mHeldImageCount = new AtomicInteger(0);
     private PhotoModule.NamedImages mNamedImages;
     private WatchdogThread mWatchdog;
-    private int mOrientation = 0;
     private ImageWriter mZSLImageWriter;
 
     //This is for the debug feature.
     private static boolean DEBUG_FILTER = false;
     private static boolean DEBUG_ZSL = false;
-    private ImageFilter.ResultImage mDebugResultImage;
     private ZSLQueue mZSLQueue;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
@@ -120,6 +131,13 @@ public class PostProcessor{
     private Handler mZSLHandler;
     private HandlerThread mZSLHandlerThread;
     private ImageHandlerTask mImageHandlerTask;
+    //Each process thread keeps its own encoder and output buffer.
+    private static final ThreadLocal<JpegEncoder> sJpegEncoder = new ThreadLocal<JpegEncoder>() {
+        @Override
+        protected JpegEncoder initialValue() {
+            return new JpegEncoder();
+        }
+    };
 
     private void checkAndEnableZSL(int cameraId) {
         if (mController.mSettingsManager.isZslSupported(cameraId)) {
@@ -160,9 +178,12 @@ public class PostProcessor{
         private ImageWrapper mImageWrapper = null;
         Semaphore mMutureLock = new Semaphore(1);
 
+        private int mMaxImages = MAX_REQUIRED_IMAGE_NUM;
+
         @Override
         public void onImageAvailable(ImageReader reader) {
             try {
+                mMaxImages = reader.getMaxImages();
                 Image image = reader.acquireLatestImage();
                 if(image == null) {
                     return;
@@ -194,6 +215,7 @@ public class PostProcessor{
                 Image image = mImageWrapper.getImage();
                 if (mUseZSL) {
                     if (mZSLQueue != null) {
+                        mZSLQueue.setMaxImages(mMaxImages);
                         mZSLQueue.add(image);
                     }
                 } else {
@@ -292,23 +314,61 @@ public class PostProcessor{
     }
 
     private void onImageToProcess(Image image) {
-        addImage(image);
-        if (isReadyToProcess()) {
+        CaptureContext context = addImage(image);
+        if (context != null) {
             long captureStartTime = System.currentTimeMillis();
             mNamedImages.nameNewImage(captureStartTime);
             PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
-            String title = (name == null) ? null : name.title;
-            long date = (name == null) ? -1 : name.date;
-            processImage(title, date, mController.getMediaSavedListener(), mActivity.getContentResolver());
+            context.mTitle = (name == null) ? null : name.title;
+            context.mDate = (name == null) ? -1 : name.date;
+            processImage(context, mController.getMediaSavedListener(), mActivity.getContentResolver());
+        }
+    }
+
+    /*
+     * Everything that belongs to a single shutter press. A context collects
+     * the images its filter needs and is then handed to the process executor,
+     * so the next shutter press can start collecting right away.
+     */
+    private class CaptureContext {
+        final ImageFilter mFilter;
+        final Image[] mImages;
+        final int mOrientation;
+        final int mJpegQuality;
+        int mNumImage = 0;
+        String mTitle;
+        long mDate;
+
+        CaptureContext(ImageFilter filter, int orientation, int jpegQuality) {
+            mFilter = filter;
+            mImages = new Image[filter == null ? 1 : filter.getNumRequiredImage()];
+            mOrientation = orientation;
+            mJpegQuality = jpegQuality;
+        }
+
+        boolean addImage(Image image) {
+            if (mNumImage >= mImages.length) {
+                image.close();
+                return false;
+            }
+            mImages[mNumImage++] = image;
+            return true;
         }
-    }
 
-    enum STATUS {
-        DEINIT,
-        INIT,
-        BUSY
+        boolean isComplete() {
+            return mNumImage >= mImages.length;
+        }
+
+        void closeImages() {
+            for (int i = 0; i < mImages.length; i++) {
+                if (mImages[i] != null) {
+                    mImages[i].close();
+                    mImages[i] = null;
+                    mHeldImageCount.decrementAndGet();
+                }
+            }
+        }
     }
-    private STATUS mStatus = STATUS.DEINIT;
 
     public PostProcessor(CameraActivity activity, CaptureModule module) {
         mController = module;
@@ -317,10 +377,19 @@ public class PostProcessor{
         mNamedImages = new PhotoModule.NamedImages();
     }
 
+    /* Whether one more capture can be taken without running out of images or workers */
     public boolean isItBusy() {
-        if(mStatus == STATUS.BUSY)
+        if (mInFlightCount.get() >= MAX_IN_FLIGHT_CAPTURES) {
             return true;
-        return false;
+        }
+        synchronized (mContextLock) {
+            if (mCollectingContext != null) {
+                return true;
+            }
+        }
+        ImageFilter filter = mFilter;
+        int required = (filter == null) ? 1 : filter.getNumRequiredImage();
+        return mHeldImageCount.get() + required > MAX_REQUIRED_IMAGE_NUM;
     }
 
     public List<CaptureRequest> setRequiredImages(CaptureRequest.Builder builder) {
@@ -365,7 +434,7 @@ public class PostProcessor{
         startBackgroundThread();
 
         if (mUseZSL) {
-            mZSLQueue = new ZSLQueue(mController);
+            mZSLQueue = new ZSLQueue(mController, mZSLHandler, mActivity);
         }
     }
 
@@ -374,12 +443,7 @@ public class PostProcessor{
     }
 
     public void onClose() {
-        synchronized (lock) {
-            if (mHandler != null) {
-                mHandler.setInActive();
-            }
-            stopBackgroundThread();
-        }
+        stopBackgroundThread();
         setFilter(FILTER_NONE);
         if (mZSLQueue != null) {
             mZSLQueue.onClose();
@@ -392,12 +456,23 @@ public class PostProcessor{
         mCameraDevice = null;
         mCaptureSession = null;
         mImageReader = null;
+        ImageBufferPool.getInstance().trim();
     }
 
     private void startBackgroundThread() {
-        mHandlerThread = new HandlerThread("PostProcessorThread");
-        mHandlerThread.start();
-        mHandler = new ProcessorHandler(mHandlerThread.getLooper());
+        mProcessExecutor = new ThreadPoolExecutor(MAX_IN_FLIGHT_CAPTURES, MAX_IN_FLIGHT_CAPTURES,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_REQUIRED_IMAGE_NUM),
+                new ThreadFactory() {
+                    private int mCount = 0;
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "PostProcessorThread" + (mCount++));
+                    }
+                });
+        synchronized (mContextLock) {
+            mIsProcessorActive = true;
+        }
 
         mZSLHandlerThread = new HandlerThread("ZSLHandlerThread");
         mZSLHandlerThread.start();
@@ -461,16 +536,23 @@ public class PostProcessor{
     }
 
     private void stopBackgroundThread() {
-        if (mHandlerThread != null) {
-            mHandlerThread.quitSafely();
+        synchronized (mContextLock) {
+            mIsProcessorActive = false;
+            if (mCollectingContext != null) {
+                mCollectingContext.closeImages();
+                mCollectingContext = null;
+            }
+        }
+        if (mProcessExecutor != null) {
+            mProcessExecutor.shutdown();
             try {
-                mHandlerThread.join();
+                mProcessExecutor.awaitTermination(PROCESS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
             }
-            mHandlerThread = null;
-            mHandler = null;
+            mProcessExecutor = null;
         }
         if (mZSLHandlerThread != null) {
+            mZSLHandler.setInActive();
             mZSLHandlerThread.quitSafely();
             try {
                 mZSLHandlerThread.join();
@@ -483,7 +565,6 @@ public class PostProcessor{
             mWatchdog.kill();
             mWatchdog = null;
         }
-        clear();
     }
 
     public boolean setFilter(int index) {
@@ -495,7 +576,7 @@ public class PostProcessor{
             if (mFilter != null) {
                 mFilter.deinit();
             }
-            mStatus = STATUS.DEINIT;
+            mIsFilterInitialized = false;
             switch (index) {
                 case FILTER_NONE:
                     mFilter = null;
@@ -517,6 +598,16 @@ public class PostProcessor{
                     break;
             }
         }
+        //A half collected capture belongs to the previous filter.
+        synchronized (mContextLock) {
+            if (mCollectingContext != null) {
+                mCollectingContext.closeImages();
+                mCollectingContext = null;
+            }
+            if (mWatchdog != null && mInFlightCount.get() == 0) {
+                mWatchdog.stopMonitor();
+            }
+        }
 
         if(mFilter != null && !mFilter.isSupported()) {
             final String filterName = mFilter.getStringName();
@@ -533,194 +624,226 @@ public class PostProcessor{
             return false;
         }
         mFilterIndex = index;
-        mImages = new Image[mFilter.getNumRequiredImage()];
         return true;
     }
 
-    private boolean isReadyToProcess() {
-        synchronized (lock) {
-            if (mFilter == null) {
-                return true;
+    /* Returns the capture context once it has got all the images it needs. */
+    private CaptureContext addImage(final Image image) {
+        synchronized (mContextLock) {
+            if (!mIsProcessorActive) {
+                image.close();
+                return null;
             }
-            if (mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-                return true;
+            if (mCollectingContext == null) {
+                mCollectingContext = new CaptureContext(mFilter,
+                        CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation()),
+                        getJpegQuality());
+                if (mWatchdog != null) {
+                    mWatchdog.startMonitor();
+                }
+            }
+            CaptureContext context = mCollectingContext;
+            if (context.addImage(image)) {
+                mHeldImageCount.incrementAndGet();
             }
+            if (!context.isComplete()) {
+                return null;
+            }
+            mCollectingContext = null;
+            mInFlightCount.incrementAndGet();
+            return context;
         }
-        return false;
     }
 
-    private void addImage(final Image image) {
-        if(mHandler == null || !mHandler.isRunning) {
-            return;
+    private int getJpegQuality() {
+        String value = mController.mSettingsManager.getValue(SettingsManager.KEY_JPEG_QUALITY);
+        if (value == null) {
+            return DEFAULT_JPEG_QUALITY;
         }
-        final ProcessorHandler handler = mHandler;
-        if (mStatus == STATUS.DEINIT) {
-            mWidth = image.getWidth();
-            mHeight = image.getHeight();
-            mStride = image.getPlanes()[0].getRowStride();
-            mStatus = STATUS.INIT;
-            mHandler.post(new Runnable() {
-                    public void run() {
-                        synchronized (lock) {
-                            if(!handler.isRunning) {
-                                return;
-                            }
-                            if(mFilter == null) {
-                                //Nothing here we have to do if filter is not chosen.
-                            } else {
-                                mFilter.init(mWidth, mHeight, mStride, mStride);
-                            }
-                        }
-                    }
-                });
-        }
-        if(mCurrentNumImage == 0) {
-            mStatus = STATUS.BUSY;
-            if(mWatchdog != null) {
-                mWatchdog.startMonitor();
+        return CaptureModule.getQualityNumber(value);
+    }
+
+    private void onCaptureContextDone(CaptureContext context) {
+        context.closeImages();
+        synchronized (mContextLock) {
+            if (mInFlightCount.decrementAndGet() == 0 && mCollectingContext == null
+                    && mWatchdog != null) {
+                mWatchdog.stopMonitor();
             }
-            mOrientation = CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation());
-        }
-        if(mFilter != null && mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-            return;
-        }
-        final int numImage = mCurrentNumImage;
-        mCurrentNumImage++;
-        if(mHandler == null) {
-            return;
         }
-        mHandler.post(new Runnable() {
-                public void run() {
-                    synchronized (lock) {
-                        if(!handler.isRunning) {
-                            return;
-                        }
-                        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
-                        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
-                        if(mFilter != null && DEBUG_FILTER && numImage == 0) {
-                            mDebugResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDebugResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDebugResultImage.outBuffer.array(), mStride * mHeight, vuBuf.remaining());
-                            yBuf.rewind();
-                            vuBuf.rewind();
-                        }
-                        if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
-                            image.close();
-                        } else {
-                            mFilter.addImage(image.getPlanes()[0].getBuffer(),
-                                    image.getPlanes()[2].getBuffer(), numImage, null);
-                            mImages[numImage] = image;
-                        }
-                    }
-                }
-            });
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree) {
+    private static ExifInterface createExif(int orientationInDegree) {
         ExifInterface exif = new ExifInterface();
         exif.addOrientationTag(orientationInDegree);
         exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
                 TimeZone.getDefault());
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
-        try {
-            exif.writeExif(jpeg, jpegOut);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not write EXIF", e);
-        }
-        return jpegOut.toByteArray();
+        return exif;
     }
 
-    private void clear() {
-        mCurrentNumImage = 0;
+    //Wraps out so the EXIF header is written while a JPEG is encoded into it.
+    //thumbnail is a small JPEG for IFD1, see JpegEncoder.createThumbnail().
+    public static OutputStream getExifWriterStream(OutputStream out, int orientationInDegree,
+            byte[] thumbnail) {
+        ExifInterface exif = createExif(orientationInDegree);
+        if (thumbnail != null) {
+            exif.setCompressedThumbnail(thumbnail);
+        }
+        return exif.getExifWriterStream(out);
     }
 
-    private void processImage(final String title, final long date,
+    private void processImage(final CaptureContext context,
                              final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                              final ContentResolver contentResolver) {
-        if(mHandler == null || !mHandler.isRunning) {
+        final ThreadPoolExecutor executor = mProcessExecutor;
+        if (executor == null) {
+            onCaptureContextDone(context);
             return;
         }
-        final ProcessorHandler handler = mHandler;
-        mHandler.post(new Runnable() {
-            public void run() {
-                byte[] bytes;
-                ImageFilter.ResultImage resultImage = null;
-                synchronized (lock) {
-                    if (!handler.isRunning) {
-                        return;
-                    }
-                    if (mFilter == null) { //In case no post filter is chosen
-                        resultImage = mDefaultResultImage;
-                    } else {
-                        resultImage = mFilter.processImage();
-                        for (int i = 0; i < mImages.length; i++) {
-                            if(mImages[i] != null) {
-                                mImages[i].close();
-                                mImages[i] = null;
-                            }
-                        }
-                    }
-                    if(resultImage != null) {
-                        //Start processing FrameProcessor filter as well
-                        for (ImageFilter filter : mController.getFrameFilters()) {
-                            filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
-                            filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
-                        }
-                    }
-                    //End processing FrameProessor filter
-                    clear();
-                    mStatus = STATUS.INIT;
-                    if(mWatchdog != null) {
-                        mWatchdog.stopMonitor();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        processCaptureContext(context, mediaSavedListener, contentResolver);
+                    } finally {
+                        onCaptureContextDone(context);
                     }
-                    if(resultImage == null ||
-                            (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                            (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                            ) {
-                        Log.d(TAG, "Result image is not valid.");
-                    } else {
-                        if(mFilter != null && DEBUG_FILTER) {
-                            bytes = nv21ToJpeg(mDebugResultImage, mOrientation);
-                            mActivity.getMediaSaveService().addImage(
-                                    bytes, title + "_beforeApplyingFilter", date, null, mDebugResultImage.outRoi.width(), mDebugResultImage.outRoi.height(),
-                                    mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                        }
-                        bytes = nv21ToJpeg(resultImage, mOrientation);
-                        mActivity.getMediaSaveService().addImage(
-                                bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                        mController.updateThumbnailJpegData(bytes);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Too many captures are in flight, drop the capture");
+            onCaptureContextDone(context);
+        }
+    }
+
+    private void processCaptureContext(CaptureContext context,
+                                       MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                                       ContentResolver contentResolver) {
+        if (!mIsProcessorActive) {
+            return;
+        }
+        ImageFilter.ResultImage resultImage = null;
+        ImageFilter.ResultImage debugResultImage = null;
+        if (context.mFilter == null) { //In case no post filter is chosen
+            resultImage = copyToResultImage(context.mImages[0]);
+            context.closeImages();
+        } else {
+            synchronized (lock) {
+                if (context.mFilter != mFilter) {
+                    Log.w(TAG, "Filter is changed while processing, drop the capture");
+                    return;
+                }
+                Image image = context.mImages[0];
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int stride = image.getPlanes()[0].getRowStride();
+                if (!mIsFilterInitialized || width != mFilterWidth
+                        || height != mFilterHeight || stride != mFilterStride) {
+                    if (mIsFilterInitialized) {
+                        mFilter.deinit();
                     }
+                    mFilter.init(width, height, stride, stride);
+                    mFilterWidth = width;
+                    mFilterHeight = height;
+                    mFilterStride = stride;
+                    mIsFilterInitialized = true;
+                }
+                if (DEBUG_FILTER) {
+                    debugResultImage = copyToResultImage(image);
+                }
+                for (int i = 0; i < context.mImages.length; i++) {
+                    mFilter.addImage(context.mImages[i].getPlanes()[0].getBuffer(),
+                            context.mImages[i].getPlanes()[2].getBuffer(), i, null);
                 }
+                ImageFilter.ResultImage filterResult = mFilter.processImage();
+                context.closeImages();
+                //The filter hands its output buffer over and takes a fresh one
+                //from the pool, so the result stays valid after the lock is released.
+                resultImage = filterResult;
             }
-        });
-    }
+        }
 
-    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                                    resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, 50, bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation);
-        return bytes;
-    }
+        if (resultImage != null) {
+            //Start processing FrameProcessor filter as well
+            synchronized (mFrameFilterLock) {
+                for (ImageFilter filter : mController.getFrameFilters()) {
+                    filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
+                    filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
+                }
+            }
+            //End processing FrameProessor filter
+        }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
+        if(resultImage == null ||
+                (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                ) {
+            Log.d(TAG, "Result image is not valid.");
+        } else {
+            awaitSaveCapacity();
+            byte[] bytes;
+            if (debugResultImage != null) {
+                bytes = nv21ToJpeg(debugResultImage, context.mOrientation, context.mJpegQuality);
+                if (bytes != null) {
+                    mActivity.getMediaSaveService().addImage(
+                            bytes, context.mTitle + "_beforeApplyingFilter", context.mDate, null,
+                            debugResultImage.outRoi.width(), debugResultImage.outRoi.height(),
+                            context.mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
+                }
+            }
+            bytes = nv21ToJpeg(resultImage, context.mOrientation, context.mJpegQuality);
+            if (bytes != null) {
+                mActivity.getMediaSaveService().addImage(
+                        bytes, context.mTitle, context.mDate, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
+                        context.mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
+                mController.updateThumbnailJpegData(bytes);
+            }
+        }
+        //The pixels are encoded, so the buffers can go back to the pool.
+        if (resultImage != null) {
+            ImageBufferPool.getInstance().release(resultImage.outBuffer);
+        }
+        if (debugResultImage != null) {
+            ImageBufferPool.getInstance().release(debugResultImage.outBuffer);
         }
+    }
 
-        public byte[] getArray() {
-            return buf;
+    //Hold the processing thread instead of losing the image when the save
+    //queue is full. MediaSaveService drops it if it is still full after that.
+    private void awaitSaveCapacity() {
+        MediaSaveService service = mActivity.getMediaSaveService();
+        if (service == null) {
+            return;
+        }
+        try {
+            if (!service.awaitCapacity(SAVE_CAPACITY_TIMEOUT_MS)) {
+                Log.w(TAG, "Save queue is still full after " + SAVE_CAPACITY_TIMEOUT_MS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    private ImageFilter.ResultImage copyToResultImage(Image image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int stride = image.getPlanes()[0].getRowStride();
+        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
+        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
+        ImageFilter.ResultImage resultImage = new ImageFilter.ResultImage(
+                ImageBufferPool.getInstance().acquireHeap(stride * height*3/2),
+                new Rect(0, 0, width, height), width, height, stride);
+        yBuf.get(resultImage.outBuffer.array(), 0, yBuf.remaining());
+        vuBuf.get(resultImage.outBuffer.array(), stride * height, vuBuf.remaining());
+        yBuf.rewind();
+        vuBuf.rewind();
+        return resultImage;
+    }
+
+    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, int quality) {
+        return sJpegEncoder.get().encode(resultImage, quality, createExif(orientation));
+    }
+
     private native int nativeFlipVerticalNV21(byte[] buf, int stride, int height);
 
     static {
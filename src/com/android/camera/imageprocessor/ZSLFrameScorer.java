@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/*
+ * Ranks the buffered ZSL frames. The metrics are measured once when a frame
+ * is paired, so scoring must not touch any pixel data.
+ */
+public interface ZSLFrameScorer {
+
+    /* Higher is better. Frames that fail the 3A checks are never scored. */
+    float score(FrameMetrics metrics);
+
+    class FrameMetrics {
+        /* Variance of the Laplacian over the downscaled Y plane, or -1 if unknown */
+        public final float sharpness;
+        /* Angular speed of the device in rad/s during the exposure, or -1 if unknown */
+        public final float motion;
+        /* Exposure time in nanoseconds, or 0 if unknown */
+        public final long exposureTime;
+
+        public FrameMetrics(float sharpness, float motion, long exposureTime) {
+            this.sharpness = sharpness;
+            this.motion = motion;
+            this.exposureTime = exposureTime;
+        }
+
+        /* False when neither the sharpness nor the motion could be measured. */
+        public boolean hasQualitySignal() {
+            return sharpness >= 0 || motion >= 0;
+        }
+    }
+
+    /*
+     * Prefers sharp frames and penalizes the blur expected from moving the
+     * device during the exposure.
+     */
+    class DefaultScorer implements ZSLFrameScorer {
+        //Blur weight for one radian of rotation during the exposure.
+        private static final float BLUR_WEIGHT = 200f;
+
+        @Override
+        public float score(FrameMetrics metrics) {
+            float sharpness = (metrics.sharpness < 0) ? 1f : metrics.sharpness;
+            float motion = (metrics.motion < 0) ? 0f : metrics.motion;
+            float rotation = motion * metrics.exposureTime / 1000000000f;
+            return sharpness / (1f + BLUR_WEIGHT * rotation);
+        }
+    }
+}
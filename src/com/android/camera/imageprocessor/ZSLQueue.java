@@ -28,251 +28,539 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.android.camera.imageprocessor;
 
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.MediaSaveService;
 import android.os.SystemProperties;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/*
+ * Pairs the ZSL images with their capture results by SENSOR_TIMESTAMP.
+ *
+ * Images are added on the ZSL handler thread and metadata on the capture
+ * callback thread. The metadata only goes through a single producer/single
+ * consumer ring, and all the pairing is done on the ZSL handler thread, so
+ * neither thread waits on a lock. Paired items are published in a ring the
+ * shutter path claims from atomically.
+ *
+ * Each paired frame is measured once (sharpness, device motion during its
+ * own exposure) and the shutter path picks the best scored frame from the
+ * ring. Without any quality signal it takes the newest acceptable frame.
+ *
+ * The number of frames kept in the ring follows the shutter cadence and
+ * the save queue memory, within the ImageReader headroom.
+ */
 public class ZSLQueue {
     private static final String CIRCULAR_BUFFER_SIZE_PERSIST = "persist.camera.zsl.buffer.size";
+    private static final String CIRCULAR_BUFFER_MAX_SIZE_PERSIST = "persist.camera.zsl.buffer.max";
     private static final int CIRCULAR_BUFFER_SIZE_DEFAULT = 5;
+    private static final int CIRCULAR_BUFFER_MAX_SIZE_DEFAULT = 8;
+    private static final int CIRCULAR_BUFFER_MIN_SIZE = 2;
+    //Images the ImageReader needs besides the ring: acquireLatestImage, reprocessing and unpaired images.
+    private static final int IMAGE_READER_HEADROOM = 3;
+    private static final int DEPTH_UPDATE_INTERVAL = 30; //This is in frame count.
+    private static final long FAST_SHUTTER_INTERVAL_MS = 1500;
+    private static final long IDLE_SHUTTER_TIMEOUT_MS = 10000;
+    //Save queue occupancy below which the ring may grow and above which it drops to the minimum.
+    private static final float SAVE_QUEUE_LOW_WATERMARK = 0.5f;
+    private static final float SAVE_QUEUE_HIGH_WATERMARK = 0.8f;
     private int mCircularBufferSize = CIRCULAR_BUFFER_SIZE_DEFAULT;
-    private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
-    private Object mLock = new Object();
-    private LinkedList<PendingRequest> mPendingRequestList = new LinkedList<PendingRequest>();
+    private int mMinDepth = CIRCULAR_BUFFER_MIN_SIZE;
+    //The configured depth, kept while the shutter is idle and restored after memory pressure.
+    private int mBaseDepth;
+    private int mMaxDepth;
+    private boolean mUnderPressure = false;
+    private volatile int mDepth;
+    private volatile int mMaxImages = Integer.MAX_VALUE;
+    private volatile long mLastShutterTime = 0;
+    private volatile long mShutterInterval = Long.MAX_VALUE;
+    private int mLastMissCount = 0;
+    private final AtomicInteger mHitCount = new AtomicInteger(0);
+    private final AtomicInteger mMissCount = new AtomicInteger(0);
+    private volatile MetricsListener mMetricsListener;
+    private CameraActivity mActivity;
+    //Paired items. Written only on the ZSL thread, claimed with compareAndSet.
+    private AtomicReferenceArray<ImageItem> mBuffer;
+    private int mBufferHead;
+    private volatile int mLatestIndex = -1;
+    //Images or metadata still waiting for the other half. ZSL thread only.
+    private TimestampIndex mUnpaired;
+    private MetadataRing mMetadataRing;
+    private ConcurrentLinkedQueue<PendingRequest> mPendingRequestList =
+            new ConcurrentLinkedQueue<PendingRequest>();
+    private volatile long mFrameCount = 0;
+    private volatile boolean mIsClosed = false;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private Handler mHandler;
     private CaptureModule mModule;
     private static final boolean DEBUG  = false;
     private static final boolean DEBUG_QUEUE  = false;
     private static final String TAG = "ZSLQueue";
     private static final int REQUEST_LIFESPAN = 5; //This is in frame count.
+    //The Y plane is sampled down to about this width to measure the sharpness.
+    private static final int SHARPNESS_SAMPLE_WIDTH = 320;
+    private volatile ZSLFrameScorer mFrameScorer = new ZSLFrameScorer.DefaultScorer();
+    //Gyroscope samples kept to find the motion during a frame's exposure.
+    private static final int GYRO_HISTORY_SIZE = 64;
+    //A sample this close to the exposure still counts, otherwise the motion is unknown.
+    private static final long GYRO_MATCH_TOLERANCE_NS = 20000000L;
+    private SensorManager mSensorManager;
+    //Written by the gyroscope listener and read when pairing, both on the ZSL thread.
+    private final long[] mGyroTimes = new long[GYRO_HISTORY_SIZE];
+    private final float[] mGyroSpeeds = new float[GYRO_HISTORY_SIZE];
+    private int mGyroHead = 0;
+    private int mGyroCount = 0;
+
+    private final SensorEventListener mGyroListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
+            mGyroTimes[mGyroHead] = event.timestamp;
+            mGyroSpeeds[mGyroHead] = (float) Math.sqrt(x * x + y * y + z * z);
+            mGyroHead = (mGyroHead + 1) % GYRO_HISTORY_SIZE;
+            if (mGyroCount < GYRO_HISTORY_SIZE) {
+                mGyroCount++;
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
+    public interface MetricsListener {
+        /* Called on the ZSL thread whenever the depth changes. */
+        void onZSLMetrics(int depth, int hitCount, int missCount);
+    }
 
     class PendingRequest {
-        private int mLifeTimeInFrame;
+        private final long mCreatedFrame;
 
-        public PendingRequest(){
-            mLifeTimeInFrame = 0;
+        public PendingRequest(long frameCount){
+            mCreatedFrame = frameCount;
         }
 
-        public int getLifeTime() {
-            return mLifeTimeInFrame;
+        public long getLifeTime(long frameCount) {
+            return frameCount - mCreatedFrame;
         }
+    }
 
-        public void incLifeTime() {
-            mLifeTimeInFrame++;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            if (!mIsClosed) {
+                drainMetadata();
+            }
         }
-    }
+    };
 
-    public ZSLQueue(CaptureModule module) {
+    /*
+     * handler has to be the one of the thread which adds the images, so that
+     * late metadata can be paired without waiting for the next image.
+     */
+    public ZSLQueue(CaptureModule module, Handler handler, CameraActivity activity) {
         mCircularBufferSize = SystemProperties.getInt(CIRCULAR_BUFFER_SIZE_PERSIST, CIRCULAR_BUFFER_SIZE_DEFAULT);
-        synchronized (mLock) {
-            mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
-            mPendingRequestList.clear();
-            mModule = module;
+        mMaxDepth = Math.max(mCircularBufferSize,
+                SystemProperties.getInt(CIRCULAR_BUFFER_MAX_SIZE_PERSIST, CIRCULAR_BUFFER_MAX_SIZE_DEFAULT));
+        ActivityManager am = (ActivityManager) activity.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null && am.isLowRamDevice()) {
+            mMaxDepth = Math.min(mCircularBufferSize, mMaxDepth);
+        }
+        mMaxDepth = Math.max(mMinDepth, mMaxDepth);
+        mBaseDepth = Math.max(mMinDepth, Math.min(mCircularBufferSize, mMaxDepth));
+        mDepth = mBaseDepth;
+        mBuffer = new AtomicReferenceArray<ImageItem>(mMaxDepth);
+        mBufferHead = 0;
+        mUnpaired = new TimestampIndex(mMaxDepth * 2);
+        mMetadataRing = new MetadataRing(mMaxDepth * 2);
+        mPendingRequestList.clear();
+        mModule = module;
+        mHandler = handler;
+        mActivity = activity;
+        mSensorManager = (SensorManager) activity.getSystemService(Context.SENSOR_SERVICE);
+        Sensor gyro = (mSensorManager == null) ? null
+                : mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (gyro != null) {
+            mSensorManager.registerListener(mGyroListener, gyro,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
         }
     }
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
     }
 
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+    /* Called with the max images of the ImageReader which feeds the queue. */
+    public void setMaxImages(int maxImages) {
+        mMaxImages = maxImages;
+    }
+
+    public int getDepth() {
+        return mDepth;
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
     }
 
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public void setFrameScorer(ZSLFrameScorer scorer) {
+        mFrameScorer = (scorer == null) ? new ZSLFrameScorer.DefaultScorer() : scorer;
+    }
+
+    /* Called on the ZSL handler thread. */
     public void add(Image image) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mImageHead].setImage(image);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
-            }
+        if (mIsClosed) {
+            image.close();
+            return;
         }
+        drainMetadata();
+        long timestamp = image.getTimestamp();
+        ImageItem item = mUnpaired.remove(timestamp);
+        if (item == null) {
+            item = new ImageItem(timestamp, mFrameCount);
+        }
+        item.setImage(image);
+        if(DEBUG_QUEUE) Log.d(TAG, "image: " + timestamp + " paired: " + item.isValid());
+        if (item.isValid()) {
+            onItemPaired(item);
+        } else {
+            putUnpaired(item);
+        }
+        mFrameCount++;
+        mUnpaired.evictOlderThan(mFrameCount - mUnpaired.getCapacity());
+        agePendingRequests();
+        if (mFrameCount % DEPTH_UPDATE_INTERVAL == 0) {
+            updateDepth();
+        }
+    }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
-
-        if(mPendingRequestList.size() != 0) {
-            if(lastIndex != -1) {
-                processPendingRequest(lastIndex);
+    /* Called on the ZSL thread, the only thread which changes the depth. */
+    private void updateDepth() {
+        int maxDepth = Math.max(CIRCULAR_BUFFER_MIN_SIZE,
+                Math.min(mMaxDepth, mMaxImages - IMAGE_READER_HEADROOM));
+        int minDepth = Math.min(mMinDepth, maxDepth);
+        int baseDepth = Math.min(mBaseDepth, maxDepth);
+        MediaSaveService service = mActivity.getMediaSaveService();
+        float occupancy = (service == null) ? 0f : service.getQueueOccupancy();
+        long sinceLastShutter = SystemClock.uptimeMillis() - mLastShutterTime;
+        int missCount = mMissCount.get();
+        boolean missed = missCount != mLastMissCount;
+        mLastMissCount = missCount;
+
+        int depth = mDepth;
+        if (occupancy >= SAVE_QUEUE_HIGH_WATERMARK) {
+            mUnderPressure = true;
+            depth = minDepth;
+        } else if (mUnderPressure) {
+            if (occupancy < SAVE_QUEUE_LOW_WATERMARK) {
+                mUnderPressure = false;
+                depth = Math.max(depth, baseDepth);
             }
-            for(int i=0; i < mPendingRequestList.size(); i++) {
-                mPendingRequestList.get(i).incLifeTime();
+        } else if (sinceLastShutter >= IDLE_SHUTTER_TIMEOUT_MS) {
+            depth = Math.max(baseDepth, depth - 1);
+        } else if (occupancy < SAVE_QUEUE_LOW_WATERMARK
+                && (missed || mShutterInterval < FAST_SHUTTER_INTERVAL_MS)) {
+            depth++;
+        }
+        depth = Math.max(minDepth, Math.min(maxDepth, depth));
+        if (depth != mDepth) {
+            if(DEBUG) Log.d(TAG, "depth " + mDepth + " -> " + depth + " occupancy " + occupancy);
+            mDepth = depth;
+            evictBeyondDepth();
+            MetricsListener listener = mMetricsListener;
+            if (listener != null) {
+                listener.onZSLMetrics(depth, mHitCount.get(), missCount);
             }
         }
     }
 
-    private void processPendingRequest(int index) {
-        ImageItem item;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            item = mBuffer[index];
-            if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                if(DEBUG && (mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() !=
-                        mBuffer[index].getImage().getTimestamp()) {
-                    Log.e(TAG,"Not matching image coming through");
-                }
-                mBuffer[index] = null;
-                mPendingRequestList.removeFirst();
-                for(PendingRequest request : mPendingRequestList) {
-                    if(request.getLifeTime() >= REQUEST_LIFESPAN) {
-                        mPendingRequestList.remove(request);
-                    }
-                }
-            } else {
-                return;
+    private void evictBeyondDepth() {
+        int length = mBuffer.length();
+        int head = mLatestIndex;
+        if (head < 0) {
+            return;
+        }
+        for (int age = mDepth; age < length; age++) {
+            ImageItem old = mBuffer.getAndSet((head - age + length) % length, null);
+            if (old != null) {
+                old.closeImage();
             }
         }
-        mModule.getPostProcessor().onMatchingZSLPictureAvailable(item);
     }
 
+    /* Called on the capture callback thread. Never blocks. */
     public void add(TotalCaptureResult metadata) {
-        int lastIndex = -1;
-        synchronized (mLock) {
-            if(mBuffer == null)
-                return;
-            long timestamp = -1;
+        if (mIsClosed) {
+            return;
+        }
+        if (!mMetadataRing.offer(metadata)) {
+            if(DEBUG_QUEUE) Log.d(TAG, "Metadata ring is full, drop the metadata");
+            return;
+        }
+        if (mHandler != null && mDrainScheduled.compareAndSet(false, true)) {
+            if (!mHandler.post(mDrainRunnable)) {
+                mDrainScheduled.set(false);
+            }
+        }
+    }
+
+    private void drainMetadata() {
+        TotalCaptureResult metadata;
+        while ((metadata = mMetadataRing.poll()) != null) {
+            long timestamp;
             try {
                 timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
             } catch(IllegalStateException e) {
                 //This happens when corresponding image to this metadata is closed and discarded.
-                return;
+                continue;
             }
-            if(timestamp == -1) {
-                return;
+            ImageItem item = mUnpaired.remove(timestamp);
+            if (item == null) {
+                item = new ImageItem(timestamp, mFrameCount);
             }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
+            item.setMetadata(metadata);
+            if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + timestamp + " paired: " + item.isValid());
+            if (item.isValid()) {
+                onItemPaired(item);
             } else {
-                mBuffer[mMetaHead].closeMeta();
+                putUnpaired(item);
             }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
+        }
+    }
+
+    private void putUnpaired(ImageItem item) {
+        if (!mUnpaired.put(item.getTimestamp(), item)) {
+            //Only happens when one stream stopped, so the oldest halves are useless.
+            mUnpaired.evictOlderThan(Long.MAX_VALUE);
+            mUnpaired.put(item.getTimestamp(), item);
+        }
+    }
+
+    private void onItemPaired(ImageItem item) {
+        boolean isQualified = checkImageRequirement(item.getMetadata());
+        if (isQualified && !mPendingRequestList.isEmpty()) {
+            PendingRequest request = mPendingRequestList.poll();
+            if (request != null) {
+                mModule.getPostProcessor().onMatchingZSLPictureAvailable(item);
+                return;
             }
         }
+        if (isQualified) {
+            Long exposure = item.getMetadata().get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            long exposureTime = (exposure == null) ? 0 : exposure.longValue();
+            item.setMetrics(new ZSLFrameScorer.FrameMetrics(measureSharpness(item.getImage()),
+                    measureMotion(item.getTimestamp(), exposureTime), exposureTime));
+        }
+        int index = mBufferHead;
+        ImageItem old = mBuffer.getAndSet(index, item);
+        mLatestIndex = index;
+        mBufferHead = (mBufferHead + 1) % mBuffer.length();
+        if (old != null) {
+            old.closeImage();
+        }
+        evictBeyondDepth();
+    }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+    private void agePendingRequests() {
+        PendingRequest request;
+        while ((request = mPendingRequestList.peek()) != null
+                && request.getLifeTime(mFrameCount) >= REQUEST_LIFESPAN) {
+            if(DEBUG) Log.d(TAG, "Pending request is expired");
+            mPendingRequestList.remove(request);
+        }
+    }
 
-        if(mPendingRequestList.size() != 0) {
-            if(lastIndex != -1) {
-                processPendingRequest(lastIndex);
+    /*
+     * Average angular speed over the exposure which starts at the frame's
+     * SENSOR_TIMESTAMP. Returns -1 when no gyroscope sample is close enough,
+     * e.g. when the camera and sensor clocks have different time bases.
+     */
+    private float measureMotion(long timestamp, long exposureTime) {
+        long start = timestamp;
+        long end = timestamp + exposureTime;
+        float sum = 0f;
+        int count = 0;
+        float nearest = -1f;
+        long nearestDistance = GYRO_MATCH_TOLERANCE_NS;
+        for (int i = 0; i < mGyroCount; i++) {
+            long time = mGyroTimes[i];
+            if (time >= start && time <= end) {
+                sum += mGyroSpeeds[i];
+                count++;
+                continue;
             }
-            for(int i=0; i < mPendingRequestList.size(); i++) {
-                mPendingRequestList.get(i).incLifeTime();
+            long distance = (time < start) ? start - time : time - end;
+            if (distance <= nearestDistance) {
+                nearest = mGyroSpeeds[i];
+                nearestDistance = distance;
             }
         }
+        return (count > 0) ? sum / count : nearest;
     }
 
+    /*
+     * Variance of the Laplacian on a point sampled Y plane. Returns -1 when
+     * the pixels are not accessible, e.g. for PRIVATE format ZSL buffers.
+     */
+    private static float measureSharpness(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            return -1f;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        if (planes == null || planes.length == 0) {
+            return -1f;
+        }
+        ByteBuffer y = planes[0].getBuffer();
+        int rowStride = planes[0].getRowStride();
+        int pixelStride = planes[0].getPixelStride();
+        int step = Math.max(1, image.getWidth() / SHARPNESS_SAMPLE_WIDTH);
+        int cols = image.getWidth() / step;
+        int rows = image.getHeight() / step;
+        if (cols < 3 || rows < 3) {
+            return -1f;
+        }
+        int dx = step * pixelStride;
+        int dy = step * rowStride;
+        long sum = 0;
+        long sumSq = 0;
+        int count = 0;
+        for (int r = 1; r < rows - 1; r++) {
+            int offset = r * dy + dx;
+            for (int c = 1; c < cols - 1; c++, offset += dx) {
+                int lap = 4 * (y.get(offset) & 0xff)
+                        - (y.get(offset - dx) & 0xff) - (y.get(offset + dx) & 0xff)
+                        - (y.get(offset - dy) & 0xff) - (y.get(offset + dy) & 0xff);
+                sum += lap;
+                sumSq += lap * lap;
+                count++;
+            }
+        }
+        float mean = (float) sum / count;
+        return (float) sumSq / count - mean * mean;
+    }
+
+    /* Called on the shutter path. Never blocks and does no pixel work. */
     public ImageItem tryToGetMatchingItem() {
-        synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
+        onShutter();
+        ImageItem item = pickBestItem();
+        if (item != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return item;
+    }
+
+    private void onShutter() {
+        long now = SystemClock.uptimeMillis();
+        if (mLastShutterTime != 0) {
+            long interval = now - mLastShutterTime;
+            mShutterInterval = (mShutterInterval == Long.MAX_VALUE) ? interval
+                    : (mShutterInterval + interval) / 2;
+        }
+        mLastShutterTime = now;
+    }
+
+    private ImageItem pickBestItem() {
+        AtomicReferenceArray<ImageItem> buffer = mBuffer;
+        ZSLFrameScorer scorer = mFrameScorer;
+        if (mIsClosed || mLatestIndex < 0) {
+            return null;
+        }
+        //A frame can be evicted while we look at it, so retry a few times.
+        for (int attempt = 0; attempt < buffer.length(); attempt++) {
+            int head = mLatestIndex;
+            int index = head;
+            int bestIndex = -1;
+            ImageItem bestItem = null;
+            float bestScore = 0;
+            int newestIndex = -1;
+            ImageItem newestItem = null;
             do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
+                ImageItem item = buffer.get(index);
+                if (item != null && item.isValid() && item.getMetrics() != null) {
+                    if (newestItem == null) {
+                        newestItem = item;
+                        newestIndex = index;
+                    }
+                    if (item.getMetrics().hasQualitySignal()) {
+                        float score = scorer.score(item.getMetrics());
+                        //Walking from the newest, so ties keep the newer frame.
+                        if (bestItem == null || score > bestScore) {
+                            bestItem = item;
+                            bestIndex = index;
+                            bestScore = score;
+                        }
+                    }
                 }
                 index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+                if (index < 0) index = buffer.length() - 1;
+            } while (index != head);
+            if (bestItem == null) {
+                //Nothing to rank the frames by, so keep the newest acceptable one.
+                if (newestItem == null) {
+                    return null;
+                }
+                bestItem = newestItem;
+                bestIndex = newestIndex;
+            }
+            if (buffer.compareAndSet(bestIndex, bestItem, null)) {
+                if(DEBUG) Log.d(TAG, "Picked frame " + bestItem.getTimestamp() + " score " + bestScore);
+                return bestItem;
+            }
         }
         return null;
     }
 
     public void addPictureRequest() {
         if(DEBUG) Log.d(TAG, "RequsetPendingCount: "+mPendingRequestList.size());
-        synchronized (mLock) {
-            mPendingRequestList.addLast(new PendingRequest());
-        }
+        mPendingRequestList.add(new PendingRequest(mFrameCount));
     }
 
+    /* Has to be called after the ZSL thread is stopped. */
     public void onClose() {
-        synchronized (mLock) {
-            for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
+        mIsClosed = true;
+        if (mSensorManager != null) {
+            mSensorManager.unregisterListener(mGyroListener);
+        }
+        for (int i = 0; i < mBuffer.length(); i++) {
+            ImageItem item = mBuffer.getAndSet(i, null);
+            if (item != null) {
+                item.closeImage();
+                item.closeMeta();
             }
-            mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
-            mPendingRequestList.clear();
         }
+        mUnpaired.evictOlderThan(Long.MAX_VALUE);
+        while (mMetadataRing.poll() != null);
+        mLatestIndex = -1;
+        mBufferHead = 0;
+        mPendingRequestList.clear();
     }
 
     private boolean checkImageRequirement(TotalCaptureResult captureResult) {
@@ -304,9 +592,171 @@ public class ZSLQueue {
         return true;
     }
 
+    /*
+     * Single producer/single consumer ring of capture results.
+     * offer() is only called by the producer and poll() only by the consumer.
+     */
+    private static class MetadataRing {
+        private final AtomicReferenceArray<TotalCaptureResult> mSlots;
+        private final int mMask;
+        private volatile long mHead = 0;
+        private volatile long mTail = 0;
+
+        MetadataRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            mSlots = new AtomicReferenceArray<TotalCaptureResult>(size);
+            mMask = size - 1;
+        }
+
+        boolean offer(TotalCaptureResult metadata) {
+            long tail = mTail;
+            if (tail - mHead >= mSlots.length()) {
+                return false;
+            }
+            mSlots.lazySet((int) tail & mMask, metadata);
+            mTail = tail + 1;
+            return true;
+        }
+
+        TotalCaptureResult poll() {
+            long head = mHead;
+            if (head >= mTail) {
+                return null;
+            }
+            int index = (int) head & mMask;
+            TotalCaptureResult metadata = mSlots.get(index);
+            mSlots.lazySet(index, null);
+            mHead = head + 1;
+            return metadata;
+        }
+    }
+
+    /*
+     * Open addressed map from SENSOR_TIMESTAMP to the item waiting for its
+     * other half. Not thread safe, only used on the ZSL thread.
+     */
+    private static class TimestampIndex {
+        private final long[] mKeys;
+        private final ImageItem[] mValues;
+        private final int mMask;
+        private final int mCapacity;
+        private int mSize = 0;
+
+        TimestampIndex(int capacity) {
+            mCapacity = Math.max(capacity, 2);
+            //Keep the load factor at or below one half.
+            int size = Integer.highestOneBit(mCapacity * 2 - 1) << 1;
+            mKeys = new long[size];
+            mValues = new ImageItem[size];
+            mMask = size - 1;
+        }
+
+        int getCapacity() {
+            return mCapacity;
+        }
+
+        private int slotOf(long timestamp) {
+            long h = timestamp * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mMask;
+        }
+
+        private int indexOf(long timestamp) {
+            int i = slotOf(timestamp);
+            while (mValues[i] != null) {
+                if (mKeys[i] == timestamp) {
+                    return i;
+                }
+                i = (i + 1) & mMask;
+            }
+            return -1;
+        }
+
+        boolean put(long timestamp, ImageItem item) {
+            int i = indexOf(timestamp);
+            if (i >= 0) {
+                mValues[i] = item;
+                return true;
+            }
+            if (mSize >= mCapacity) {
+                return false;
+            }
+            i = slotOf(timestamp);
+            while (mValues[i] != null) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = timestamp;
+            mValues[i] = item;
+            mSize++;
+            return true;
+        }
+
+        ImageItem remove(long timestamp) {
+            int i = indexOf(timestamp);
+            if (i < 0) {
+                return null;
+            }
+            ImageItem item = mValues[i];
+            deleteAt(i);
+            return item;
+        }
+
+        /* Closes and removes the items added before the given frame. */
+        void evictOlderThan(long frameCount) {
+            int i = 0;
+            while (i < mValues.length) {
+                ImageItem item = mValues[i];
+                if (item != null && item.getFrameCount() < frameCount) {
+                    item.closeImage();
+                    item.closeMeta();
+                    //The deletion can shift a later entry into this slot.
+                    deleteAt(i);
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private void deleteAt(int hole) {
+            mValues[hole] = null;
+            mSize--;
+            int i = hole;
+            while (true) {
+                i = (i + 1) & mMask;
+                if (mValues[i] == null) {
+                    return;
+                }
+                int home = slotOf(mKeys[i]);
+                boolean inRange = (hole <= i) ? (hole < home && home <= i)
+                        : (hole < home || home <= i);
+                if (!inRange) {
+                    mKeys[hole] = mKeys[i];
+                    mValues[hole] = mValues[i];
+                    mValues[i] = null;
+                    hole = i;
+                }
+            }
+        }
+    }
+
     class ImageItem {
+        private final long mTimestamp;
+        private final long mFrameCount;
         private Image mImage = null;
         private TotalCaptureResult mMetadata = null;
+        private ZSLFrameScorer.FrameMetrics mMetrics = null;
+
+        ImageItem(long timestamp, long frameCount) {
+            mTimestamp = timestamp;
+            mFrameCount = frameCount;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        long getFrameCount() {
+            return mFrameCount;
+        }
 
         public Image getImage() {
             return mImage;
@@ -327,6 +777,15 @@ public class ZSLQueue {
             mMetadata = metadata;
         }
 
+        /* Only set for frames which passed the 3A checks */
+        public ZSLFrameScorer.FrameMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        void setMetrics(ZSLFrameScorer.FrameMetrics metrics) {
+            mMetrics = metrics;
+        }
+
         public void closeImage() {
             if(mImage != null) {
                 mImage.close();
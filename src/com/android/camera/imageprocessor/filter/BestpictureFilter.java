@@ -47,12 +47,16 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.JpegEncoder;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -209,7 +213,7 @@ public class BestpictureFilter implements ImageFilter {
     }
 
     private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation) {
-        ByteBuffer buf =  ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        ByteBuffer buf = ImageBufferPool.getInstance().acquireHeap(mStrideY*mHeight*3/2);
         buf.put(bY);
         bY.rewind();
         if(bVU != null) {
@@ -219,9 +223,17 @@ public class BestpictureFilter implements ImageFilter {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
                 mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, 50, bos);
+        byte[] thumbnail = JpegEncoder.createThumbnail(buf.array(), mWidth, mHeight,
+                mStrideY, mStrideVU, roi);
+        OutputStream out = PostProcessor.getExifWriterStream(bos, orientation, thumbnail);
+        try {
+            im.compressToJpeg(roi, 50, out);
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        ImageBufferPool.getInstance().release(buf);
         byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation);
         return bytes;
     }
 
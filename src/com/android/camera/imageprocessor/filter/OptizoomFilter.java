@@ -35,6 +35,7 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -89,7 +90,8 @@ public class OptizoomFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*6);  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
+        ImageBufferPool.getInstance().release(mOutBuf);
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(mStrideY*mHeight*6);  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -98,6 +100,7 @@ public class OptizoomFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        ImageBufferPool.getInstance().release(mOutBuf);
         mOutBuf = null;
         nativeDeinit();
     }
@@ -116,12 +119,46 @@ public class OptizoomFilter implements ImageFilter{
         int[] roi = new int[4];
         int status = nativeProcessImage(mOutBuf.array(), mModule.getZoomValue(), roi);
         Log("processImage done");
+        Rect outRoi = new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]);
+        int width, height, stride;
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the optizoom. It only processes when zoomValue >= 1.5f");
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+            width = mWidth;
+            height = mHeight;
+            stride = mStrideY;
         } else { //In success case, it will return twice bigger width and height.
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth*2, mHeight*2, mStrideY*2);
+            width = mWidth*2;
+            height = mHeight*2;
+            stride = mStrideY*2;
         }
+        int size = mStrideY*mHeight*6;
+        if (!ImageBufferPool.getInstance().canHold(size)) {
+            //The pool would drop this buffer, so keep it and hand over a copy of the ROI.
+            return copyRoi(outRoi, width, height, stride);
+        }
+        //The caller owns the result buffer and returns it to the pool after encoding.
+        ResultImage result = new ResultImage(mOutBuf, outRoi, width, height, stride);
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(size);
+        return result;
+    }
+
+    private ResultImage copyRoi(Rect roi, int width, int height, int stride) {
+        //NV21 chroma is subsampled 2x2, so the copy starts and ends on even pixels.
+        int left = roi.left/2*2;
+        int top = roi.top/2*2;
+        int w = (Math.min(roi.right, width) - left)/2*2;
+        int h = (Math.min(roi.bottom, height) - top)/2*2;
+        ByteBuffer buf = ImageBufferPool.getInstance().acquireHeap(w*h*3/2);
+        byte[] src = mOutBuf.array();
+        byte[] dst = buf.array();
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(src, (top + y)*stride + left, dst, y*w, w);
+        }
+        int srcVU = stride*height + top/2*stride + left;
+        for (int y = 0; y < h/2; y++) {
+            System.arraycopy(src, srcVU + y*stride, dst, w*h + y*w, w);
+        }
+        return new ResultImage(buf, new Rect(0, 0, w, h), w, h, w);
     }
 
     @Override
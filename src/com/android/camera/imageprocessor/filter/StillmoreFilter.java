@@ -38,6 +38,7 @@ import android.util.Log;
 import android.util.Range;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -96,7 +97,8 @@ public class StillmoreFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        ImageBufferPool.getInstance().release(mOutBuf);
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(mStrideY*mHeight*3/2);
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -105,6 +107,7 @@ public class StillmoreFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
+        ImageBufferPool.getInstance().release(mOutBuf);
         mOutBuf = null;
         nativeDeinit();
     }
@@ -129,7 +132,10 @@ public class StillmoreFilter implements ImageFilter{
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
-        return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        ResultImage result = new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        //The caller owns the result buffer and returns it to the pool after encoding.
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(mStrideY*mHeight*3/2);
+        return result;
     }
 
     @Override
@@ -42,6 +42,7 @@ import android.util.Size;
 import com.android.camera.CaptureModule;
 import com.android.camera.ui.FilmstripBottomControls;
 import com.android.camera.ui.TrackingFocusRenderer;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
 import java.util.HashSet;
@@ -63,9 +64,17 @@ public class TrackingFocusFrameListener implements ImageFilter {
     private int mTrackedId = PENDING_REGISTRATION;
     private boolean mIsInitialzed = false;
     private TrackingFocusRenderer mTrackingFocusRender;
-    byte[] yvuBytes = null;
     private int[] mInputCords = null;
     private boolean mIsFirstTime = true;
+    //Tracking runs on a frame downscaled by mScale, 1 is full resolution.
+    private int mScale = 1;
+    private int mTrackWidth;
+    private int mTrackHeight;
+    private int mTrackStride;
+    private byte[] mRowA;
+    private byte[] mRowB;
+    //NV21 frame at the tracking size handed to the tracker.
+    private byte[] mFrameBytes;
 
     public enum OperationMode {
         DEFAULT,
@@ -100,19 +109,44 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     @Override
     public void init(int width, int height, int strideY, int strideVU) {
+        if (mIsInitialzed) {
+            if (width == mWidth && height == mHeight
+                    && strideY == mStrideY && strideVU == mStrideVU) {
+                return;
+            }
+            //Tracked objects do not survive a change of the frame size
+            nRelease();
+            mIsInitialzed = false;
+            mTrackedId = PENDING_REGISTRATION;
+            mIsFirstTime = true;
+        }
         mWidth = width;
         mHeight = height;
         mStrideY = strideY;
         mStrideVU = strideVU;
-        if(!mIsInitialzed) {
-            if (nInit(OperationMode.PERFORMANCE.ordinal(), Precision.HIGH.ordinal(), mWidth, mHeight, mStrideY) < 0) {
-                Log.e(TAG, "Initialization failed.");
-            }
-            imageRect = new Rect(0, 0, width, height);
-            mTrackingFocusRender = mModule.getTrackingForcusRenderer();
-            yvuBytes = new byte[mStrideY*mHeight*3/2];
-            mIsInitialzed = true;
+        mScale = PersistUtil.getTrackingFocusDownscale();
+        if (mScale != 1 && (mScale != 2 || width % 4 != 0 || height % 4 != 0)) {
+            mScale = 1;
+        }
+        if (mScale == 1) {
+            mTrackWidth = width;
+            mTrackHeight = height;
+            mTrackStride = strideY;
+        } else {
+            mTrackWidth = width / mScale;
+            mTrackHeight = height / mScale;
+            mTrackStride = mTrackWidth;
+            mRowA = new byte[width];
+            mRowB = new byte[width];
         }
+        if (nInit(OperationMode.PERFORMANCE.ordinal(), Precision.HIGH.ordinal(),
+                mTrackWidth, mTrackHeight, mTrackStride) < 0) {
+            Log.e(TAG, "Initialization failed.");
+        }
+        imageRect = new Rect(0, 0, mTrackWidth, mTrackHeight);
+        mFrameBytes = new byte[getMinFrameSize()];
+        mTrackingFocusRender = mModule.getTrackingForcusRenderer();
+        mIsInitialzed = true;
     }
 
     @Override
@@ -125,8 +159,11 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
-        bY.get(yvuBytes, 0, bY.remaining());
-        bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+        if (mScale != 1) {
+            downscale(bY, bVU);
+        } else {
+            toFrameBytes(bY, bVU);
+        }
         int[] cords = mTrackingFocusRender.getInputCords(mWidth, mHeight);
         if(cords != null) {
             if(mTrackedId != PENDING_REGISTRATION) {
@@ -139,7 +176,8 @@ public class TrackingFocusFrameListener implements ImageFilter {
         if(mInputCords != null) {
             if (mTrackedId == PENDING_REGISTRATION) {
                 try {
-                    mTrackedId = registerObject(yvuBytes, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
+                    Point point = new Point(mInputCords[0] / mScale, mInputCords[1] / mScale);
+                    mTrackedId = registerObject(mFrameBytes, point, mIsFirstTime);
                     mIsFirstTime = false;
                 }catch(IllegalArgumentException e) {
                     mTrackedId = PENDING_REGISTRATION;
@@ -147,9 +185,57 @@ public class TrackingFocusFrameListener implements ImageFilter {
                 }
             }
             if(mTrackedId != PENDING_REGISTRATION) {
-                mTrackingFocusRender.putRegisteredCords(trackObjects(yvuBytes), mWidth, mHeight);
+                Result result = trackObjects(mFrameBytes);
+                if (mScale != 1) {
+                    result.pos.set(result.pos.left * mScale, result.pos.top * mScale,
+                            result.pos.right * mScale, result.pos.bottom * mScale);
+                }
+                mTrackingFocusRender.putRegisteredCords(result, mWidth, mHeight);
+            }
+        }
+    }
+
+    /* Copies the planes into mFrameBytes without moving the buffer positions */
+    private void toFrameBytes(ByteBuffer bY, ByteBuffer bVU) {
+        int vuOffset = mTrackStride * mTrackHeight;
+        ByteBuffer y = bY.duplicate();
+        ByteBuffer vu = bVU.duplicate();
+        y.get(mFrameBytes, 0, Math.min(y.remaining(), vuOffset));
+        vu.get(mFrameBytes, vuOffset, Math.min(vu.remaining(), mFrameBytes.length - vuOffset));
+    }
+
+    /*
+     * Halves the frame into mFrameBytes. Luma is averaged over 2x2 blocks,
+     * every other VU pair of every other chroma row is kept.
+     */
+    private void downscale(ByteBuffer bY, ByteBuffer bVU) {
+        int base = bY.position();
+        for (int j = 0; j < mTrackHeight; j++) {
+            bY.position(base + 2 * j * mStrideY);
+            bY.get(mRowA, 0, mWidth);
+            bY.position(base + (2 * j + 1) * mStrideY);
+            bY.get(mRowB, 0, mWidth);
+            int out = j * mTrackStride;
+            for (int i = 0; i < mTrackWidth; i++) {
+                int sum = (mRowA[2 * i] & 0xFF) + (mRowA[2 * i + 1] & 0xFF)
+                        + (mRowB[2 * i] & 0xFF) + (mRowB[2 * i + 1] & 0xFF);
+                mFrameBytes[out + i] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        bY.position(base);
+
+        base = bVU.position();
+        int vuOffset = mTrackStride * mTrackHeight;
+        for (int j = 0; j < mTrackHeight / 2; j++) {
+            bVU.position(base + 2 * j * mStrideVU);
+            bVU.get(mRowA, 0, mWidth);
+            int out = vuOffset + j * mTrackStride;
+            for (int i = 0; i < mTrackWidth; i += 2) {
+                mFrameBytes[out + i] = mRowA[2 * i];
+                mFrameBytes[out + i + 1] = mRowA[2 * i + 1];
             }
         }
+        bVU.position(base);
     }
 
     public static class Result {
@@ -245,7 +331,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
     }
 
     private int getMinFrameSize() {
-        return ((mStrideY * imageRect.bottom * 3) / 2);
+        return ((mTrackStride * imageRect.bottom * 3) / 2);
     }
 
     @Override
@@ -45,6 +45,8 @@ import android.util.Range;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.JpegEncoder;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -52,6 +54,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -111,7 +115,8 @@ public class UbifocusFilter implements ImageFilter {
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY * mHeight * 3 / 2);
+        ImageBufferPool.getInstance().release(mOutBuf);
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(mStrideY * mHeight * 3 / 2);
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU, NUM_REQUIRED_IMAGE);
     }
@@ -119,6 +124,7 @@ public class UbifocusFilter implements ImageFilter {
     @Override
     public void deinit() {
         Log("deinit");
+        ImageBufferPool.getInstance().release(mOutBuf);
         mOutBuf = null;
         nativeDeinit();
     }
@@ -166,6 +172,8 @@ public class UbifocusFilter implements ImageFilter {
             }
         }
         ResultImage result = new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        //The caller owns the result buffer and returns it to the pool after encoding.
+        mOutBuf = ImageBufferPool.getInstance().acquireHeap(mStrideY * mHeight * 3 / 2);
         Log("processImage done");
         return result;
     }
@@ -220,7 +228,7 @@ public class UbifocusFilter implements ImageFilter {
     }
 
     private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation) {
-        ByteBuffer buf =  ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        ByteBuffer buf = ImageBufferPool.getInstance().acquireHeap(mStrideY*mHeight*3/2);
         buf.put(bY);
         bY.rewind();
         if(bVU != null) {
@@ -230,9 +238,17 @@ public class UbifocusFilter implements ImageFilter {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
                 mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, 50, bos);
+        byte[] thumbnail = JpegEncoder.createThumbnail(buf.array(), mWidth, mHeight,
+                mStrideY, mStrideVU, roi);
+        OutputStream out = PostProcessor.getExifWriterStream(bos, orientation, thumbnail);
+        try {
+            im.compressToJpeg(roi, 50, out);
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        ImageBufferPool.getInstance().release(buf);
         byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation);
         return bytes;
     }
 
@@ -36,6 +36,15 @@ public class PersistUtil {
     private static final String PERSIST_SKIP_MEMORY_CHECK = "persist.camera.perf.skip_memck";
     private static final String PERSIST_LONGSHOT_SHOT_LIMIT = "persist.camera.longshot.shotnum";
     private static final String PERSIST_CAMERA_PREVIEW_SIZE = "persist.camera.preview.size";
+    private static final String PERSIST_IMAGE_BUFFER_POOL_LIMIT = "persist.camera.imgbuf.poollimit";
+    private static final String PERSIST_TRACKING_FOCUS_HZ = "persist.camera.trackingfocus.hz";
+    private static final String PERSIST_MAKEUP_HZ = "persist.camera.makeup.hz";
+    private static final String PERSIST_TRACKING_FOCUS_DOWNSCALE =
+            "persist.camera.trackingfocus.downscale";
+    private static final String PERSIST_STORAGE_REFRESH_INTERVAL =
+            "persist.camera.perf.storage_refresh";
+    private static final String PERSIST_MEMORY_SAMPLE_INTERVAL =
+            "persist.camera.perf.mem_sample";
 
     public static int getMemoryLimit() {
         return SystemProperties.getInt(PERSIST_MEMORY_LIMIT, 60);
@@ -52,4 +61,28 @@ public class PersistUtil {
     public static int getCameraPreviewSize() {
         return SystemProperties.getInt(PERSIST_CAMERA_PREVIEW_SIZE, 0);
     }
+
+    public static int getImageBufferPoolLimit() {
+        return SystemProperties.getInt(PERSIST_IMAGE_BUFFER_POOL_LIMIT, 64);
+    }
+
+    public static int getTrackingFocusTargetHz() {
+        return SystemProperties.getInt(PERSIST_TRACKING_FOCUS_HZ, 15);
+    }
+
+    public static int getMakeupTargetHz() {
+        return SystemProperties.getInt(PERSIST_MAKEUP_HZ, 0);
+    }
+
+    public static int getTrackingFocusDownscale() {
+        return SystemProperties.getInt(PERSIST_TRACKING_FOCUS_DOWNSCALE, 1);
+    }
+
+    public static int getStorageRefreshInterval() {
+        return SystemProperties.getInt(PERSIST_STORAGE_REFRESH_INTERVAL, 10000);
+    }
+
+    public static int getMemorySampleInterval() {
+        return SystemProperties.getInt(PERSIST_MEMORY_SAMPLE_INTERVAL, 200);
+    }
 }
@@ -6,7 +6,7 @@ include $(CLEAR_VARS)
 # We only want this apk build for tests.
 LOCAL_MODULE_TAGS := tests
 
-LOCAL_SDK_VERSION := 16
+LOCAL_SDK_VERSION := 23
 
 LOCAL_STATIC_JAVA_LIBRARIES := littlemock dexmaker
 
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.IfdId;
+
+import java.io.ByteArrayOutputStream;
+import java.util.TimeZone;
+
+/**
+ * Times ExifInterface construction with a first tag lookup, and readExif of
+ * a camera-like JPEG. Instances with a custom tag definition copy the
+ * shared table like every instance used to build its own, so they stand
+ * in for the former cost.
+ */
+@LargeTest
+public class ExifInterfaceBenchmark extends AndroidTestCase {
+    private static final String TAG = "ExifInterfaceBenchmark";
+    private static final int WARMUP_RUNS = 200;
+    private static final int TIMED_RUNS = 2000;
+    private static final short CUSTOM_TAG_ID = (short) 0xC000;
+
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJpeg = createJpeg();
+    }
+
+    public void testConstruction() {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            constructShared();
+            constructCopied();
+        }
+        long sharedNs = 0;
+        long copiedNs = 0;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            assertNotNull(constructShared());
+            sharedNs += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertNotNull(constructCopied());
+            copiedNs += System.nanoTime() - start;
+        }
+        Log.i(TAG, "construct + lookup shared: " + (sharedNs / TIMED_RUNS) + "ns"
+                + " own table: " + (copiedNs / TIMED_RUNS) + "ns");
+    }
+
+    public void testReadExif() throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            readExif(false);
+            readExif(true);
+        }
+        long sharedNs = 0;
+        long copiedNs = 0;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_TOP), readExif(false));
+            sharedNs += System.nanoTime() - start;
+            start = System.nanoTime();
+            assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_TOP), readExif(true));
+            copiedNs += System.nanoTime() - start;
+        }
+        Log.i(TAG, "readExif shared: " + (sharedNs / TIMED_RUNS / 1000) + "us"
+                + " own table: " + (copiedNs / TIMED_RUNS / 1000) + "us");
+    }
+
+    private ExifTag constructShared() {
+        ExifInterface exif = new ExifInterface();
+        return exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP);
+    }
+
+    private ExifTag constructCopied() {
+        ExifInterface exif = createCopied();
+        return exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP);
+    }
+
+    private Integer readExif(boolean copied) throws Exception {
+        ExifInterface exif = copied ? createCopied() : new ExifInterface();
+        exif.readExif(mJpeg);
+        return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+    }
+
+    private static ExifInterface createCopied() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTagDefinition(CUSTOM_TAG_ID, IfdId.TYPE_IFD_0, ExifTag.TYPE_ASCII,
+                (short) 0, new int[] { IfdId.TYPE_IFD_0 });
+        return exif;
+    }
+
+    /* A small JPEG with the tags the camera writes, plus a thumbnail. */
+    static byte[] createJpeg() throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, jpeg);
+        Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, 160, 120, true);
+
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 640));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 480));
+        exif.addGpsTags(37.422, -122.084);
+        exif.setCompressedThumbnail(thumbnail);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(jpeg.toByteArray(), out);
+        bitmap.recycle();
+        thumbnail.recycle();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.Exif;
+import com.android.camera.exif.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.TimeZone;
+
+/**
+ * Times reading the orientation of JPEGs whose EXIF header grows from the
+ * bare camera tags to a large thumbnail and maker note, once with the
+ * targeted lookup and once with a full parse. The targeted lookup should
+ * cost the same for every size.
+ */
+@LargeTest
+public class ExifLookupBenchmark extends AndroidTestCase {
+    private static final String TAG = "ExifLookupBenchmark";
+    private static final int WARMUP_RUNS = 100;
+    private static final int TIMED_RUNS = 1000;
+
+    // Thumbnail width and maker note size of each JPEG, 0 for none.
+    private static final int[][] EXIF_SIZES = {
+            { 0, 0 },
+            { 160, 0 },
+            { 320, 4 * 1024 },
+            { 512, 32 * 1024 },
+    };
+
+    public void testOrientationLookup() throws Exception {
+        for (int[] size : EXIF_SIZES) {
+            byte[] jpeg = createJpeg(size[0], size[1]);
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                Exif.getOrientation(jpeg);
+                readFullExif(jpeg);
+            }
+            long lookupNs = 0;
+            long fullNs = 0;
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                long start = System.nanoTime();
+                assertEquals(90, Exif.getOrientation(jpeg));
+                lookupNs += System.nanoTime() - start;
+                start = System.nanoTime();
+                assertEquals(90, readFullExif(jpeg));
+                fullNs += System.nanoTime() - start;
+            }
+            Log.i(TAG, "thumbnail " + size[0] + "px maker note " + size[1] + "B"
+                    + " (" + jpeg.length + "B): lookup " + (lookupNs / TIMED_RUNS / 1000) + "us"
+                    + " full parse: " + (fullNs / TIMED_RUNS / 1000) + "us");
+        }
+    }
+
+    private static int readFullExif(byte[] jpeg) throws Exception {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(new ByteArrayInputStream(jpeg));
+        return Exif.getOrientation(exif);
+    }
+
+    /* A JPEG with the tags the camera writes and the given extra EXIF payload. */
+    private static byte[] createJpeg(int thumbnailWidth, int makerNoteBytes) throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(640, 480, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, jpeg);
+
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 640));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 480));
+        exif.addGpsTags(37.422, -122.084);
+        if (makerNoteBytes > 0) {
+            exif.setTag(exif.buildTag(ExifInterface.TAG_MAKER_NOTE, new byte[makerNoteBytes]));
+        }
+        if (thumbnailWidth > 0) {
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, thumbnailWidth,
+                    thumbnailWidth * 3 / 4, true);
+            exif.setCompressedThumbnail(thumbnail);
+            thumbnail.recycle();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(jpeg.toByteArray(), out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.benchmark;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap held by the EXIF of a 500 photo folder scan that keeps
+ * the orientation and date of each photo, like the filmstrip does. Reading
+ * the files decodes only the tags that are accessed, reading the streams
+ * decodes every tag and stands in for the former per-tag cost.
+ * <p>
+ * Reading a file copies its APP1 segment to the heap and keeps nothing
+ * mapped, so the undecoded entries are counted in the heap delta too.
+ */
+@LargeTest
+public class ExifMemoryBenchmark extends AndroidTestCase {
+    private static final String TAG = "ExifMemoryBenchmark";
+    private static final int PHOTO_COUNT = 500;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "exif_memory_benchmark.jpg");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(ExifInterfaceBenchmark.createJpeg());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testFolderScan() throws Exception {
+        // Warm up class loading and the shared tag definitions.
+        scan(false);
+        scan(true);
+
+        long onDemandBytes = measureScan(false);
+        long fullBytes = measureScan(true);
+        Log.i(TAG, PHOTO_COUNT + " photos, on demand: " + (onDemandBytes / 1024) + "KB"
+                + " all tags decoded: " + (fullBytes / 1024) + "KB");
+    }
+
+    private long measureScan(boolean decodeAll) throws Exception {
+        long before = usedHeap();
+        List<ExifInterface> scanned = scan(decodeAll);
+        long after = usedHeap();
+        assertEquals(PHOTO_COUNT, scanned.size());
+        return after - before;
+    }
+
+    private List<ExifInterface> scan(boolean decodeAll) throws Exception {
+        List<ExifInterface> scanned = new ArrayList<ExifInterface>(PHOTO_COUNT);
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            ExifInterface exif = new ExifInterface();
+            if (decodeAll) {
+                InputStream is = new BufferedInputStream(new FileInputStream(mFile));
+                try {
+                    exif.readExif(is);
+                } finally {
+                    is.close();
+                }
+            } else {
+                exif.readExif(mFile.getPath());
+            }
+            assertEquals(Integer.valueOf(ExifInterface.Orientation.RIGHT_TOP),
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+            assertNotNull(exif.getTagStringValue(ExifInterface.TAG_DATE_TIME));
+            scanned.add(exif);
+        }
+        return scanned;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.benchmark;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.ScriptC_YuvRotateToRgb;
+
+import java.util.Random;
+
+/**
+ * Times the fused rotate and convert kernel used by FrameProcessor at common
+ * preview sizes and checks its output against a Java reference of the former
+ * rotator + YuvToRgb chain, which no longer ships with the app.
+ */
+@LargeTest
+public class PreviewConversionBenchmark extends AndroidTestCase {
+    private static final String TAG = "PreviewConversionBenchmark";
+    private static final int[][] PREVIEW_SIZES = {
+            {640, 480}, {1280, 720}, {1440, 1080}, {1920, 1080}};
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 50;
+    private static final int DEGREE = 90;
+    //Fixed point versus float coefficients
+    private static final int MAX_CHANNEL_DIFF = 2;
+
+    private RenderScript mRs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRs = RenderScript.create(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRs.destroy();
+        mRs = null;
+        super.tearDown();
+    }
+
+    public void testPreviewSizes() {
+        for (int[] size : PREVIEW_SIZES) {
+            runSize(size[0], size[1]);
+        }
+    }
+
+    private void runSize(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        new Random(width * height).nextBytes(nv21);
+
+        //Fused path: NV21 bytes -> RGBA, one invocation per 2x2 block
+        Allocation fusedIn = createU8(nv21.length, 0);
+        Allocation fusedBlocks = createU8(width / 2, height / 2);
+        Allocation fusedOut = createRgba(height, width);
+        ScriptC_YuvRotateToRgb fused = new ScriptC_YuvRotateToRgb(mRs);
+        fused.set_gIn(fusedIn);
+        fused.set_gOut(fusedOut);
+        fused.set_srcWidth(width);
+        fused.set_srcHeight(height);
+        fused.set_stride(width);
+        fused.set_degree(DEGREE);
+
+        byte[] expected = new byte[width * height * 4];
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            runReference(nv21, width, height, expected);
+            runFused(nv21, fusedIn, fusedBlocks, fused);
+        }
+        long referenceNs = 0;
+        long fusedNs = 0;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            runReference(nv21, width, height, expected);
+            referenceNs += System.nanoTime() - start;
+            start = System.nanoTime();
+            runFused(nv21, fusedIn, fusedBlocks, fused);
+            fusedNs += System.nanoTime() - start;
+        }
+        Log.i(TAG, width + "x" + height
+                + " java reference: " + (referenceNs / TIMED_RUNS / 1000) + "us"
+                + " fused: " + (fusedNs / TIMED_RUNS / 1000) + "us");
+
+        byte[] actual = new byte[width * height * 4];
+        fusedOut.copyTo(actual);
+        for (int i = 0; i < expected.length; i++) {
+            int diff = Math.abs((expected[i] & 0xFF) - (actual[i] & 0xFF));
+            assertTrue(width + "x" + height + " differs at byte " + i + " by " + diff,
+                    diff <= MAX_CHANNEL_DIFF);
+        }
+
+        fusedIn.destroy();
+        fusedBlocks.destroy();
+        fusedOut.destroy();
+        fused.destroy();
+    }
+
+    //Rotates by 90 degrees and converts with the float coefficients of the
+    //former rotator + YuvToRgb kernels. The output is height x width RGBA.
+    private static void runReference(byte[] nv21, int width, int height, byte[] rgba) {
+        int ySize = width * height;
+        for (int oy = 0; oy < width; oy++) {
+            for (int ox = 0; ox < height; ox++) {
+                int x = oy;
+                int y = height - 1 - ox;
+                int index = ySize + (x / 2 * 2) + (y / 2) * width;
+                int yV = nv21[x + y * width] & 0xFF;
+                int vV = (nv21[index] & 0xFF) - 128;
+                int uV = (nv21[index + 1] & 0xFF) - 128;
+
+                int r = (int) (yV + 1.370705f * vV);
+                int g = (int) (yV - 0.698001f * vV - 0.337633f * uV);
+                int b = (int) (yV + 1.732446f * uV);
+
+                int out = (ox + oy * height) * 4;
+                rgba[out] = (byte) clamp(r);
+                rgba[out + 1] = (byte) clamp(g);
+                rgba[out + 2] = (byte) clamp(b);
+                rgba[out + 3] = (byte) 0xFF;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value > 255 ? 255 : value < 0 ? 0 : value;
+    }
+
+    private void runFused(byte[] nv21, Allocation in, Allocation blocks,
+            ScriptC_YuvRotateToRgb fused) {
+        in.copyFrom(nv21);
+        fused.forEach_nv21RotateToRgb(blocks);
+        mRs.finish();
+    }
+
+    private Allocation createU8(int x, int y) {
+        Type.Builder builder = new Type.Builder(mRs, Element.U8(mRs));
+        builder.setX(x);
+        if (y > 0) {
+            builder.setY(y);
+        }
+        return Allocation.createTyped(mRs, builder.create(), Allocation.USAGE_SCRIPT);
+    }
+
+    private Allocation createRgba(int x, int y) {
+        Type.Builder builder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
+        builder.setX(x);
+        builder.setY(y);
+        return Allocation.createTyped(mRs, builder.create(), Allocation.USAGE_SCRIPT);
+    }
+}
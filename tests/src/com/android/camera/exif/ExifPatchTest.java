@@ -0,0 +1,200 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.Storage;
+import com.android.camera.tests.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Checks that the tags set on the capture path are written into the EXIF
+ * header of a jpeg that already has one, both when they fit in place and
+ * when a new header has to be built, and that the image data is kept.
+ */
+@SmallTest
+public class ExifPatchTest extends InstrumentationTestCase {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long HAL_TIME = 1000000000000L;
+    private static final long CAPTURE_TIME = 1400000000000L;
+
+    private File mFile;
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "exif_patch_test.jpg");
+        mJpeg = createHalJpeg(readResource(R.raw.jpeg_control));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPatchInPlace() throws Exception {
+        ExifInterface exif = createCaptureExif();
+        byte[] jpeg = mJpeg.clone();
+        ByteBuffer[] buffers = exif.getExifPatchBuffers(ByteBuffer.wrap(jpeg));
+        assertEquals(1, buffers.length);
+        assertSame(jpeg, buffers[0].array());
+        assertEquals(mJpeg.length, buffers[0].remaining());
+
+        assertEquals(mJpeg.length, Storage.writeFile(mFile.getAbsolutePath(), mJpeg.clone(),
+                exif, "jpeg"));
+        byte[] written = readFile(mFile);
+        assertEquals(mJpeg.length, written.length);
+        assertCaptureTags(written);
+        assertSameImage(written);
+    }
+
+    public void testPatchFallback() throws Exception {
+        ExifInterface exif = createCaptureExif();
+        // A longer make and a tag the HAL did not write do not fit in place.
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Longer camera make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_SOFTWARE, "Camera"));
+        ByteBuffer[] buffers = exif.getExifPatchBuffers(ByteBuffer.wrap(mJpeg.clone()));
+        assertTrue(buffers.length > 1);
+
+        assertTrue(Storage.writeFile(mFile.getAbsolutePath(), mJpeg.clone(), exif, "jpeg") > 0);
+        byte[] written = readFile(mFile);
+        assertCaptureTags(written);
+        ExifInterface result = new ExifInterface();
+        result.readExif(written);
+        assertEquals(exif.getTag(ExifInterface.TAG_MAKE),
+                result.getTag(ExifInterface.TAG_MAKE));
+        assertEquals(exif.getTag(ExifInterface.TAG_SOFTWARE),
+                result.getTag(ExifInterface.TAG_SOFTWARE));
+        // The tags that were not set are kept from the HAL header.
+        ExifInterface hal = new ExifInterface();
+        hal.readExif(mJpeg);
+        assertNotNull(hal.getTag(ExifInterface.TAG_MODEL));
+        assertEquals(hal.getTag(ExifInterface.TAG_MODEL), result.getTag(ExifInterface.TAG_MODEL));
+        assertSameImage(written);
+    }
+
+    /**
+     * Returns body with the EXIF header a HAL writes: the time of capture, a
+     * location and no rotation.
+     */
+    private static byte[] createHalJpeg(byte[] body) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(0);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, HAL_TIME, UTC);
+        exif.addGpsTags(37.0, -122.0);
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "HAL make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "HAL model"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream s = exif.getExifWriterStream(out);
+        s.write(body);
+        s.close();
+        return out.toByteArray();
+    }
+
+    // The tags the capture path sets, every one of them fits in place.
+    private static ExifInterface createCaptureExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(90);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, CAPTURE_TIME, UTC);
+        exif.addGpsTags(51.5, 0.125);
+        return exif;
+    }
+
+    private static void assertCaptureTags(byte[] jpeg) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        assertEquals(Integer.valueOf(ExifInterface.getOrientationValueForRotation(90)),
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION));
+        assertEquals(createCaptureExif().getTagStringValue(ExifInterface.TAG_DATE_TIME),
+                exif.getTagStringValue(ExifInterface.TAG_DATE_TIME));
+        double[] latLong = exif.getLatLongAsDoubles();
+        assertNotNull(latLong);
+        assertEquals(51.5, latLong[0], 1e-6);
+        assertEquals(0.125, latLong[1], 1e-6);
+    }
+
+    // Checks that jpeg has the same segments after its APPn ones as the HAL jpeg.
+    private void assertSameImage(byte[] jpeg) {
+        int start = findImage(jpeg);
+        int halStart = findImage(mJpeg);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mJpeg, halStart, mJpeg.length),
+                Arrays.copyOfRange(jpeg, start, jpeg.length)));
+    }
+
+    // Returns the offset of the first segment after SOI that is not an APPn one.
+    private static int findImage(byte[] jpeg) {
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        assertEquals(JpegHeader.SOI, buf.getShort());
+        while (true) {
+            short marker = buf.getShort(buf.position());
+            if (marker < JpegHeader.APP0 || marker > (short) 0xFFEF) {
+                return buf.position();
+            }
+            buf.position(buf.position() + 2 + (buf.getShort(buf.position() + 2) & 0xffff));
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readFully(new FileInputStream(file));
+    }
+
+    private byte[] readResource(int id) throws IOException {
+        return readFully(getInstrumentation().getContext().getResources().openRawResource(id));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
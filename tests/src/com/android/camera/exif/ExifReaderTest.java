@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.tests.R;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that reading the EXIF of a jpeg from a ByteBuffer or a file gives
+ * the same tags and thumbnail as reading it from an InputStream.
+ */
+@SmallTest
+public class ExifReaderTest extends InstrumentationTestCase {
+    // The offset of the APP1 length in galaxy_nexus.jpg.
+    private static final int APP1_LENGTH_OFFSET = 4;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "exif_reader_test.jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testGalaxyNexus() throws Exception {
+        byte[] jpeg = readResource(R.raw.galaxy_nexus);
+        ExifInterface exif = readAll(jpeg, "galaxy_nexus");
+        assertNotNull(exif.getAllTags());
+        assertNotNull(exif.getThumbnailBytes());
+    }
+
+    public void testNoExif() throws Exception {
+        byte[] jpeg = readResource(R.raw.jpeg_control);
+        ExifInterface exif = readAll(jpeg, "jpeg_control");
+        assertNull(exif.getAllTags());
+        assertNull(exif.getThumbnailBytes());
+    }
+
+    public void testTruncatedApp1() throws Exception {
+        byte[] jpeg = readResource(R.raw.galaxy_nexus);
+        // The file ends in the middle of the thumbnail, after every IFD.
+        byte[] truncated = Arrays.copyOf(jpeg, 5000);
+        ExifInterface exif = readAll(truncated, "truncated after the IFDs");
+        assertEquals(readAll(jpeg, "galaxy_nexus").getAllTags().size(),
+                exif.getAllTags().size());
+        assertNull(exif.getThumbnailBytes());
+
+        // The file ends in the middle of the IFDs. The stream reader fails,
+        // the others keep the tags that were read.
+        truncated = Arrays.copyOf(jpeg, 600);
+        try {
+            new ExifInterface().readExif(new ByteArrayInputStream(truncated));
+            fail("Stream reader read a truncated IFD");
+        } catch (IOException e) {
+            // Expected.
+        }
+        exif = readBufferAndFile(truncated, "truncated in the IFDs");
+        assertNotNull(exif.getAllTags());
+    }
+
+    public void testShortApp1Length() throws Exception {
+        byte[] jpeg = readResource(R.raw.galaxy_nexus);
+        // The APP1 length covers the TIFF header but not the entries of IFD 0.
+        jpeg[APP1_LENGTH_OFFSET] = 0;
+        jpeg[APP1_LENGTH_OFFSET + 1] = 100;
+        ExifInterface exif = readAll(jpeg, "short APP1");
+        assertNull(exif.getAllTags());
+        assertNull(exif.getThumbnailBytes());
+    }
+
+    /**
+     * Reads jpeg in every way and checks that they agree. Returns the result
+     * of reading it from a ByteBuffer.
+     */
+    private ExifInterface readAll(byte[] jpeg, String name) throws IOException {
+        ExifInterface fromStream = new ExifInterface();
+        fromStream.readExif(new ByteArrayInputStream(jpeg));
+        ExifInterface fromBuffer = readBufferAndFile(jpeg, name);
+        assertSameExif(name + " (buffer)", fromStream, fromBuffer);
+        return fromBuffer;
+    }
+
+    /**
+     * Reads jpeg from a ByteBuffer and from a file and checks that they
+     * agree. Returns the result of reading it from the ByteBuffer.
+     */
+    private ExifInterface readBufferAndFile(byte[] jpeg, String name) throws IOException {
+        ExifInterface fromBuffer = new ExifInterface();
+        fromBuffer.readExif(ByteBuffer.wrap(jpeg));
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+        ExifInterface fromFile = new ExifInterface();
+        fromFile.readExif(mFile.getAbsolutePath());
+        assertSameExif(name + " (file)", fromBuffer, fromFile);
+        return fromBuffer;
+    }
+
+    private static void assertSameExif(String name, ExifInterface expected,
+            ExifInterface actual) {
+        assertEquals(name, toMap(expected.getAllTags()), toMap(actual.getAllTags()));
+        assertTrue(name + " thumbnail",
+                Arrays.equals(expected.getThumbnailBytes(), actual.getThumbnailBytes()));
+    }
+
+    // Keys the tags by IFD and id, the order of getAllTags() is not defined.
+    private static Map<Integer, ExifTag> toMap(List<ExifTag> tags) {
+        if (tags == null) {
+            return null;
+        }
+        Map<Integer, ExifTag> map = new HashMap<Integer, ExifTag>();
+        for (ExifTag tag : tags) {
+            assertNull(map.put(ExifInterface.defineTag(tag.getIfd(), tag.getTagId()), tag));
+        }
+        return map;
+    }
+
+    private byte[] readResource(int id) throws IOException {
+        InputStream in = getInstrumentation().getContext().getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link IfdData} keeps its tags sorted by id while tags are set
+ * and removed, with entries that are decoded on demand among them.
+ */
+@SmallTest
+public class IfdDataTest extends TestCase {
+    private static final short TAG_MAKE = ExifInterface.getTrueTagKey(ExifInterface.TAG_MAKE);
+    private static final short TAG_MODEL = ExifInterface.getTrueTagKey(ExifInterface.TAG_MODEL);
+    private static final short TAG_ORIENTATION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_ORIENTATION);
+    private static final short TAG_SOFTWARE = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_SOFTWARE);
+    private static final short TAG_ARTIST = ExifInterface.getTrueTagKey(ExifInterface.TAG_ARTIST);
+    private static final short TAG_IMAGE_DESCRIPTION = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_IMAGE_DESCRIPTION);
+
+    private final ExifInterface mInterface = new ExifInterface();
+
+    public void testSetAndRemoveTags() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        // More tags than the initial capacity, out of order, with ids that
+        // are negative as shorts.
+        int[] tagIds = {
+                ExifInterface.TAG_EXIF_IFD, ExifInterface.TAG_MODEL, ExifInterface.TAG_GPS_IFD,
+                ExifInterface.TAG_IMAGE_WIDTH, ExifInterface.TAG_ORIENTATION,
+                ExifInterface.TAG_MAKE, ExifInterface.TAG_SOFTWARE, ExifInterface.TAG_ARTIST
+        };
+        for (int tagId : tagIds) {
+            assertNull(ifd.setTag(buildTag(tagId)));
+        }
+        assertEquals(tagIds.length, ifd.getTagCount());
+        assertSorted(ifd);
+
+        ExifTag model = mInterface.buildTag(ExifInterface.TAG_MODEL, "Other model");
+        assertEquals(buildTag(ExifInterface.TAG_MODEL), ifd.setTag(model));
+        assertSame(model, ifd.getTag(TAG_MODEL));
+        assertEquals(tagIds.length, ifd.getTagCount());
+
+        ifd.removeTag(TAG_MAKE);
+        ifd.removeTag(ExifInterface.getTrueTagKey(ExifInterface.TAG_EXIF_IFD));
+        ifd.removeTag(TAG_IMAGE_DESCRIPTION);
+        assertEquals(tagIds.length - 2, ifd.getTagCount());
+        assertFalse(ifd.checkCollision(TAG_MAKE));
+        assertNull(ifd.getTag(TAG_MAKE));
+        assertTrue(ifd.checkCollision(TAG_ARTIST));
+        assertEquals(buildTag(ExifInterface.TAG_ARTIST), ifd.getTag(TAG_ARTIST));
+        assertSorted(ifd);
+
+        assertNull(ifd.setTag(buildTag(ExifInterface.TAG_MAKE)));
+        assertEquals(tagIds.length - 1, ifd.getTagCount());
+        assertSorted(ifd);
+    }
+
+    public void testLazyEntries() throws Exception {
+        byte[] jpeg = createJpeg();
+        ExifInterface expected = new ExifInterface();
+        expected.readExif(new ByteArrayInputStream(jpeg));
+
+        ExifBufferReader reader = new ExifBufferReader(new ExifInterface());
+        ExifData data = reader.read(ByteBuffer.wrap(jpeg));
+        IfdData ifd = data.getIfdData(IfdId.TYPE_IFD_0);
+        ByteBuffer tiff = findTiff(jpeg);
+        int count = ifd.getTagCount();
+
+        // Decode one entry and leave the others to loadAll().
+        assertEquals(expected.getTag(ExifInterface.TAG_MAKE), ifd.getTag(TAG_MAKE));
+        // Insert before and after, replace and remove undecoded entries.
+        ExifTag width = buildTag(ExifInterface.TAG_IMAGE_WIDTH);
+        assertNull(ifd.setTag(width));
+        ExifTag artist = buildTag(ExifInterface.TAG_ARTIST);
+        assertNull(ifd.setTag(artist));
+        ExifTag model = mInterface.buildTag(ExifInterface.TAG_MODEL, "Other model");
+        assertEquals(expected.getTag(ExifInterface.TAG_MODEL), ifd.setTag(model));
+        ifd.removeTag(TAG_IMAGE_DESCRIPTION);
+        assertFalse(ifd.checkCollision(TAG_IMAGE_DESCRIPTION));
+        // Turn a decoded tag back into an entry.
+        ifd.setTag(buildTag(ExifInterface.TAG_SOFTWARE));
+        ifd.setEntry(TAG_SOFTWARE, findEntry(tiff, TAG_SOFTWARE), reader);
+        assertEquals(count + 1, ifd.getTagCount());
+
+        data.loadAll();
+        // Nothing may be read from the buffer any more.
+        Arrays.fill(jpeg, (byte) 0);
+        assertSorted(ifd);
+        assertEquals(count + 1, ifd.getTagCount());
+        assertSame(width, ifd.getTag(width.getTagId()));
+        assertSame(artist, ifd.getTag(TAG_ARTIST));
+        assertSame(model, ifd.getTag(TAG_MODEL));
+        assertNull(ifd.getTag(TAG_IMAGE_DESCRIPTION));
+        assertEquals(expected.getTag(ExifInterface.TAG_MAKE), ifd.getTag(TAG_MAKE));
+        assertEquals(expected.getTag(ExifInterface.TAG_ORIENTATION),
+                ifd.getTag(TAG_ORIENTATION));
+        assertEquals(expected.getTag(ExifInterface.TAG_SOFTWARE), ifd.getTag(TAG_SOFTWARE));
+    }
+
+    private ExifTag buildTag(int tagId) {
+        if (tagId == ExifInterface.TAG_ORIENTATION) {
+            return mInterface.buildTag(tagId, ExifInterface.Orientation.TOP_LEFT);
+        }
+        if (mInterface.getDefinedTagType(tagId) == ExifTag.TYPE_ASCII) {
+            return mInterface.buildTag(tagId, "Tag " + tagId);
+        }
+        return mInterface.buildTag(tagId, 0);
+    }
+
+    private static void assertSorted(IfdData ifd) {
+        ExifTag[] tags = ifd.getAllTags();
+        assertEquals(ifd.getTagCount(), tags.length);
+        for (int i = 1; i < tags.length; i++) {
+            assertTrue((tags[i - 1].getTagId() & 0xffff) < (tags[i].getTagId() & 0xffff));
+        }
+        for (ExifTag tag : tags) {
+            assertEquals(IfdId.TYPE_IFD_0, tag.getIfd());
+            assertSame(tag, ifd.getTag(tag.getTagId()));
+        }
+    }
+
+    // Returns a jpeg with a few ASCII and SHORT tags in IFD 0.
+    private byte[] createJpeg() throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION));
+        exif.setTag(buildTag(ExifInterface.TAG_MAKE));
+        exif.setTag(buildTag(ExifInterface.TAG_MODEL));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+        exif.setTag(buildTag(ExifInterface.TAG_SOFTWARE));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream s = exif.getExifWriterStream(out);
+        s.write(new byte[] {
+                (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9
+        });
+        s.close();
+        return out.toByteArray();
+    }
+
+    // Returns the TIFF header of jpeg and what follows it in its APP1 segment.
+    private static ByteBuffer findTiff(byte[] jpeg) {
+        ByteBuffer buf = ByteBuffer.wrap(jpeg);
+        assertEquals(JpegHeader.SOI, buf.getShort(0));
+        assertEquals(JpegHeader.APP1, buf.getShort(2));
+        assertEquals(ExifParser.EXIF_HEADER, buf.getInt(6));
+        buf.position(12);
+        ByteBuffer tiff = buf.slice();
+        tiff.order(tiff.getShort(0) == ExifParser.LITTLE_ENDIAN_TAG
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        return tiff;
+    }
+
+    // Returns the position of the entry of tagId in IFD 0 of tiff.
+    private static int findEntry(ByteBuffer tiff, short tagId) {
+        int ifd0 = tiff.getInt(4);
+        int count = tiff.getShort(ifd0) & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            if (tiff.getShort(entry) == tagId) {
+                return entry;
+            }
+        }
+        fail("No entry for tag " + tagId);
+        return -1;
+    }
+}